@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.benchmark;
+
+import edu.umich.med.michr.gradle.server.H2ServerMode;
+import edu.umich.med.michr.gradle.server.H2ServerShutdown;
+import edu.umich.med.michr.gradle.server.H2ShutdownMode;
+import edu.umich.med.michr.gradle.server.InProcessH2Servers;
+import edu.umich.med.michr.gradle.server.ServerReadinessProbe;
+import org.h2.tools.Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URISyntaxException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An H2 server started the way the plugin starts it, either forked or hosted in the benchmark JVM.
+ */
+final class BenchmarkServer {
+  static final String PASSWORD = "benchmark";
+  private static final Duration STARTUP_TIMEOUT = Duration.ofMinutes(1);
+  private static final Duration STOP_TIMEOUT = Duration.ofMinutes(1);
+
+  private final H2ServerMode mode;
+  private final int tcpPort;
+  private final int webPort;
+  private Process process;
+
+  BenchmarkServer(H2ServerMode mode) {
+    this.mode = mode;
+    this.tcpPort = freePort();
+    this.webPort = freePort();
+  }
+
+  int getTcpPort() {
+    return tcpPort;
+  }
+
+  /**
+   * Starts the server and blocks until the readiness probe of the plugin reports it ready.
+   */
+  void startAndAwaitReady() {
+    List<String> args = Arrays.asList("-tcp", "-tcpPort", String.valueOf(tcpPort), "-tcpPassword", PASSWORD,
+                                      "-web", "-webPort", String.valueOf(webPort), "-ifNotExists");
+    if (mode == H2ServerMode.IN_PROCESS) {
+      InProcessH2Servers.start(h2Classpath(), args, tcpPort);
+    } else {
+      List<String> command = new ArrayList<>(Arrays.asList(
+        Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+        "-cp", h2Classpath().get(0).getAbsolutePath(), Server.class.getName()));
+      command.addAll(args);
+      try {
+        process = new ProcessBuilder(command).redirectErrorStream(true)
+                                             .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    new ServerReadinessProbe("localhost", Arrays.asList(tcpPort, webPort), STARTUP_TIMEOUT, null,
+                             () -> mode == H2ServerMode.IN_PROCESS || process.isAlive()).awaitReady();
+  }
+
+  /**
+   * Stops the server the way {@code stopH2} does, through {@link H2ServerShutdown} with {@link H2ShutdownMode#NONE}
+   * since the benchmark database holds nothing worth closing, and waits until a forked server process is gone.
+   */
+  void stop() throws InterruptedException {
+    new H2ServerShutdown(h2Classpath(), PASSWORD, null, null, null, H2ShutdownMode.NONE, STOP_TIMEOUT)
+      .stop(tcpPort, Optional.empty());
+    if (process != null && !process.waitFor(STOP_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+      process.destroyForcibly();
+    }
+  }
+
+  static List<File> h2Classpath() {
+    try {
+      return Collections.singletonList(new File(Server.class.getProtectionDomain().getCodeSource().getLocation().toURI()));
+    } catch (URISyntaxException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static int freePort() {
+    try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      return socket.getLocalPort();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.benchmark;
+
+import edu.umich.med.michr.gradle.server.H2ServerMode;
+import org.gradle.testkit.runner.GradleRunner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end builds of a project applying the plugin, run with TestKit against a warm daemon.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GradleBuildBenchmark {
+  @Param({"FORKED", "IN_PROCESS"})
+  public H2ServerMode serverMode;
+
+  private GradleRunner runner;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    Path projectDir = Files.createTempDirectory("h2-plugin-benchmark");
+    Files.write(projectDir.resolve("settings.gradle"), "rootProject.name = 'benchmark'\n".getBytes(StandardCharsets.UTF_8));
+    String buildScript = String.join("\n",
+      "import edu.umich.med.michr.gradle.server.H2ServerMode",
+      "plugins { id 'edu.umich.med.michr.h2-plugin' }",
+      "repositories { mavenCentral() }",
+      "h2 {",
+      "  tcpPort = " + BenchmarkServer.freePort(),
+      "  webPort = " + BenchmarkServer.freePort(),
+      "  serverMode = H2ServerMode." + serverMode.name(),
+      "}",
+      "");
+    Files.write(projectDir.resolve("build.gradle"), buildScript.getBytes(StandardCharsets.UTF_8));
+    runner = GradleRunner.create().withPluginClasspath().withProjectDir(projectDir.toFile());
+  }
+
+  /**
+   * Configuration phase of a build running the H2 tasks, without executing them.
+   */
+  @Benchmark
+  public Object configureBuild() {
+    return runner.withArguments("startH2", "stopH2", "--dry-run").build();
+  }
+
+  /**
+   * A build starting and stopping the server.
+   */
+  @Benchmark
+  public Object startAndStop() {
+    return runner.withArguments("startH2", "stopH2").build();
+  }
+}
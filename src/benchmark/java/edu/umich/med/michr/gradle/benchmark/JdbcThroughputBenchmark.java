@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.benchmark;
+
+import edu.umich.med.michr.gradle.H2Plugin;
+import edu.umich.med.michr.gradle.H2PluginExtension;
+import edu.umich.med.michr.gradle.H2StorageMode;
+import edu.umich.med.michr.gradle.server.H2JdbcDriver;
+import edu.umich.med.michr.gradle.server.H2ServerMode;
+import edu.umich.med.michr.gradle.server.InProcessH2Servers;
+import org.gradle.api.Project;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JDBC read and write throughput against a server configured through the plugin extension, for each storage mode.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class JdbcThroughputBenchmark {
+  private static final int ROWS = 10_000;
+  private static final int BATCH_SIZE = 100;
+
+  /**
+   * An in-process server with one table, configured through {@link H2PluginExtension}.
+   */
+  @State(Scope.Benchmark)
+  public static class Database {
+    @Param({"FILE", "MEMORY", "NIO_MEM_FS"})
+    public H2StorageMode storage;
+
+    String jdbcUrl;
+    H2JdbcDriver driver;
+    private int tcpPort;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+      Project project = ProjectBuilder.builder().build();
+      project.getPluginManager().apply(H2Plugin.class);
+      H2PluginExtension extension = project.getExtensions().getByType(H2PluginExtension.class);
+      tcpPort = BenchmarkServer.freePort();
+      extension.getTcpPort().set(tcpPort);
+      extension.getWebPort().set(BenchmarkServer.freePort());
+      extension.getBaseDir().set(Files.createTempDirectory("h2-benchmark").toFile());
+      extension.getStorage().set(storage);
+      extension.getServerMode().set(H2ServerMode.IN_PROCESS);
+
+      //one element per argument, so a base directory with spaces stays a single argument
+      InProcessH2Servers.start(BenchmarkServer.h2Classpath(), extension.buildH2StartArgs(), tcpPort);
+      jdbcUrl = extension.buildJdbcUrl();
+      driver = new H2JdbcDriver(BenchmarkServer.h2Classpath());
+      try (Connection connection = connect(); Statement statement = connection.createStatement()) {
+        statement.execute("CREATE TABLE BENCH(ID BIGINT AUTO_INCREMENT PRIMARY KEY, V VARCHAR(100))");
+        statement.execute("INSERT INTO BENCH(V) SELECT 'row ' || X FROM SYSTEM_RANGE(1, " + ROWS + ")");
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      InProcessH2Servers.stop(tcpPort);
+    }
+
+    Connection connect() throws SQLException {
+      return driver.connect(jdbcUrl, "sa", "");
+    }
+  }
+
+  /**
+   * A connection per benchmark thread.
+   */
+  @State(Scope.Thread)
+  public static class Session {
+    Connection connection;
+    PreparedStatement insert;
+    PreparedStatement select;
+
+    @Setup(Level.Trial)
+    public void setup(Database database) throws SQLException {
+      connection = database.connect();
+      insert = connection.prepareStatement("INSERT INTO BENCH(V) VALUES (?)");
+      select = connection.prepareStatement("SELECT V FROM BENCH WHERE ID = ?");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+      connection.close();
+    }
+  }
+
+  /**
+   * One operation is a batch of {@value #BATCH_SIZE} inserted rows.
+   */
+  @Benchmark
+  public int[] insertBatch(Session session) throws SQLException {
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      session.insert.setString(1, "inserted " + i);
+      session.insert.addBatch();
+    }
+    return session.insert.executeBatch();
+  }
+
+  @Benchmark
+  public String selectByKey(Session session) throws SQLException {
+    session.select.setLong(1, ThreadLocalRandom.current().nextLong(1, ROWS + 1));
+    try (ResultSet resultSet = session.select.executeQuery()) {
+      return resultSet.next() ? resultSet.getString(1) : null;
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.benchmark;
+
+import edu.umich.med.michr.gradle.server.H2ServerMode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to ready and stop latency of a forked and an in-process server, started and probed the way {@code startH2}
+ * does it. The in-process server reuses the H2 class loader between invocations, like a warm Gradle daemon.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ServerLifecycleBenchmark {
+
+  /**
+   * A server that is not running yet.
+   */
+  @State(Scope.Thread)
+  public static class StoppedServer {
+    @Param({"FORKED", "IN_PROCESS"})
+    public H2ServerMode serverMode;
+
+    BenchmarkServer server;
+
+    @Setup(Level.Invocation)
+    public void setup() {
+      server = new BenchmarkServer(serverMode);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws InterruptedException {
+      server.stop();
+    }
+  }
+
+  /**
+   * A server that is running and ready.
+   */
+  @State(Scope.Thread)
+  public static class RunningServer {
+    @Param({"FORKED", "IN_PROCESS"})
+    public H2ServerMode serverMode;
+
+    BenchmarkServer server;
+
+    @Setup(Level.Invocation)
+    public void setup() {
+      server = new BenchmarkServer(serverMode);
+      server.startAndAwaitReady();
+    }
+  }
+
+  @Benchmark
+  public void timeToReady(StoppedServer state) {
+    state.server.startAndAwaitReady();
+  }
+
+  @Benchmark
+  public void stopLatency(RunningServer state) throws InterruptedException {
+    state.server.stop();
+  }
+}
@@ -16,18 +16,61 @@
  */
 package edu.umich.med.michr.gradle;
 
+import edu.umich.med.michr.gradle.metrics.H2MetricsSampler;
+import edu.umich.med.michr.gradle.metrics.H2MetricsService;
+import edu.umich.med.michr.gradle.metrics.StartMetricsSamplingAction;
+import edu.umich.med.michr.gradle.metrics.WriteMetricsReportAction;
+import edu.umich.med.michr.gradle.server.ClassDataSharingArguments;
+import edu.umich.med.michr.gradle.server.CloneTemplateDatabaseAction;
+import edu.umich.med.michr.gradle.server.ForkJdbcUrlArguments;
+import edu.umich.med.michr.gradle.server.H2ReadinessService;
+import edu.umich.med.michr.gradle.server.H2ServerArguments;
+import edu.umich.med.michr.gradle.server.H2ServerService;
+import edu.umich.med.michr.gradle.tasks.AbstractH2SnapshotTask;
+import edu.umich.med.michr.gradle.tasks.ExportH2DataTask;
+import edu.umich.med.michr.gradle.tasks.LoadH2DataTask;
+import edu.umich.med.michr.gradle.tasks.RestoreH2SnapshotTask;
+import edu.umich.med.michr.gradle.tasks.SaveH2SnapshotTask;
+import edu.umich.med.michr.gradle.tasks.StartAllH2Task;
 import edu.umich.med.michr.gradle.tasks.StartH2Task;
+import edu.umich.med.michr.gradle.tasks.StopH2Task;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
+import org.gradle.api.Task;
+import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.file.Directory;
+import org.gradle.api.file.RegularFile;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.services.BuildServiceRegistration;
 import org.gradle.api.tasks.JavaExec;
+import org.gradle.api.tasks.TaskProvider;
+import org.gradle.api.tasks.testing.Test;
+import org.gradle.build.event.BuildEventsListenerRegistry;
+import org.gradle.jvm.toolchain.JavaInstallationMetadata;
+import org.gradle.jvm.toolchain.JavaLauncher;
 
 import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import java.io.File;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * H2 Gradle Plugin for running the H2 database inside gradle.
  */
 public class H2Plugin implements Plugin<Project> {
   static final String H2_CONFIGURATION_NAME = "h2";
+  static final String SHARED_SERVER_SERVICE_NAME = "h2SharedServer";
+  static final String METRICS_SERVICE_NAME = "h2Metrics";
+  static final String READINESS_SERVICE_NAME = "h2Readiness";
+
+  private final BuildEventsListenerRegistry buildEventsListenerRegistry;
+
+  @Inject
+  public H2Plugin(BuildEventsListenerRegistry buildEventsListenerRegistry) {
+    this.buildEventsListenerRegistry = buildEventsListenerRegistry;
+  }
 
   /**
    * {@inheritDoc}
@@ -35,7 +78,13 @@ public class H2Plugin implements Plugin<Project> {
   @Override
   public void apply(@Nonnull Project project) {
     H2PluginExtension extension = applyExtension(project);
+    applyClasspath(project, extension);
     applyTasks(project, extension);
+    applyServers(project, extension);
+    applySharedServer(project, extension);
+    applyMetrics(project, extension);
+    applyTestIsolation(project, extension);
+    project.afterEvaluate(evaluatedProject -> extension.validate());
   }
 
   /**
@@ -48,6 +97,23 @@ public class H2Plugin implements Plugin<Project> {
     return project.getExtensions().create(H2_CONFIGURATION_NAME, H2PluginExtension.class);
   }
 
+  /**
+   * Create the {@code h2} configuration all tasks of the project resolve the H2 runtime from. Without declared
+   * dependencies it contains {@link H2PluginExtension#getRuntimeDependency()}.
+   *
+   * @param project The project using this plugin
+   * @param extension The extension of the project
+   */
+  void applyClasspath(Project project, H2PluginExtension extension) {
+    project.getConfigurations().create(H2_CONFIGURATION_NAME, configuration -> {
+      configuration.setDescription("The H2 runtime the tasks of the h2 plugin use.");
+      configuration.setCanBeConsumed(false);
+      configuration.setCanBeResolved(true);
+      configuration.defaultDependencies(dependencies -> dependencies.add(
+        project.getDependencies().create(extension.getRuntimeDependency().get())));
+    });
+  }
+
   /**
    * Create all the H2 tasks and add them to the project.
    *
@@ -55,19 +121,328 @@ public class H2Plugin implements Plugin<Project> {
    */
   void applyTasks(Project project, H2PluginExtension extension) {
     project.getTasks().register("startH2", StartH2Task.class, (StartH2Task startH2Task) -> {
-      startH2Task.setGroup(H2_CONFIGURATION_NAME);
       startH2Task.setDescription("Starts the H2 database.");
-      startH2Task.getMainClass().set(extension.getMainClass());
-      startH2Task.setArgsString(extension.buildH2StartMainArgs());
-      startH2Task.setClasspath(extension.buildClassPathConfig(project));
+      configureStartTask(project, startH2Task, extension, extension, extension.buildClassPathConfig(project));
+      startH2Task.getServerLogFile().set(extension.getServerLogFile());
+      startH2Task.getServerLockFile().set(extension.getServerLockFile());
+      startH2Task.dependsOn("restoreH2Snapshot");
     });
 
-    project.getTasks().register("stopH2", JavaExec.class, (JavaExec stopH2Task) -> {
-      stopH2Task.setGroup(H2_CONFIGURATION_NAME);
+    project.getTasks().register("stopH2", StopH2Task.class, (StopH2Task stopH2Task) -> {
       stopH2Task.setDescription("Stops the H2 database.");
-      stopH2Task.getMainClass().set(extension.getMainClass());
-      stopH2Task.setArgsString(extension.getH2StopMainArgs());
-      stopH2Task.setClasspath(extension.buildClassPathConfig(project));
+      configureStopTask(project, stopH2Task, extension, extension.buildClassPathConfig(project));
+      stopH2Task.getServerLockFile().set(extension.getServerLockFile());
+      stopH2Task.mustRunAfter("loadH2Data", "exportH2");
+    });
+
+    project.getTasks().register("loadH2Data", LoadH2DataTask.class, (LoadH2DataTask loadTask) -> {
+      loadTask.setGroup(H2_CONFIGURATION_NAME);
+      loadTask.setDescription("Bulk loads CSV and SQL data files into the H2 database.");
+      loadTask.getH2Classpath().from(extension.buildClassPathConfig(project));
+      loadTask.getJdbcUrl().set(project.provider(extension::buildJdbcUrl));
+      loadTask.getDatabaseUser().set(extension.getDatabaseUser());
+      loadTask.getDatabasePassword().set(extension.getDatabasePassword());
+      loadTask.mustRunAfter("startH2");
+    });
+
+    project.getTasks().register("exportH2", ExportH2DataTask.class, (ExportH2DataTask exportTask) -> {
+      exportTask.setGroup(H2_CONFIGURATION_NAME);
+      exportTask.setDescription("Exports the tables of the H2 database in parallel into compressed CSV or SQL files.");
+      exportTask.getH2Classpath().from(extension.buildClassPathConfig(project));
+      exportTask.getJdbcUrl().set(project.provider(extension::buildJdbcUrl));
+      exportTask.getDatabaseUser().set(extension.getDatabaseUser());
+      exportTask.getDatabasePassword().set(extension.getDatabasePassword());
+      exportTask.getOutputDir().convention(project.getLayout().getBuildDirectory().dir("h2/export"));
+      exportTask.getSummaryFile().convention(project.getLayout().getBuildDirectory().file("reports/h2/export-summary.csv"));
+      exportTask.mustRunAfter("startH2", "loadH2Data");
+    });
+
+    extension.getServerLogFile().convention(project.getLayout().getBuildDirectory().file("h2/server.log"));
+    extension.getServerLockFile().convention(project.getLayout().getBuildDirectory().file("h2/server.lock"));
+    extension.getClassDataSharingArchiveDir().convention(project.getLayout().dir(project.provider(
+      () -> new File(project.getGradle().getGradleUserHomeDir(), "caches/h2-plugin/cds"))));
+    extension.getSnapshotCacheDir().convention(project.getLayout().dir(project.provider(
+      () -> new File(project.getGradle().getGradleUserHomeDir(), "caches/h2-plugin/snapshots"))));
+
+    project.getTasks().register("restoreH2Snapshot", RestoreH2SnapshotTask.class, (RestoreH2SnapshotTask restoreTask) -> {
+      restoreTask.setGroup(H2_CONFIGURATION_NAME);
+      restoreTask.setDescription("Restores the snapshot of the migrated H2 database matching the migration files.");
+      configureSnapshotTask(restoreTask, extension);
+      restoreTask.getRestoredMarker().convention(project.getLayout().getBuildDirectory().file("h2/snapshot.restored"));
+    });
+
+    project.getTasks().register("saveH2Snapshot", SaveH2SnapshotTask.class, (SaveH2SnapshotTask saveTask) -> {
+      saveTask.setGroup(H2_CONFIGURATION_NAME);
+      saveTask.setDescription("Saves a snapshot of the migrated H2 database keyed on the migration files.");
+      configureSnapshotTask(saveTask, extension);
+      saveTask.getH2Classpath().from(extension.buildClassPathConfig(project));
+      saveTask.getJdbcUrl().set(project.provider(extension::buildJdbcUrl));
+      saveTask.getDatabaseUser().set(extension.getDatabaseUser());
+      saveTask.getDatabasePassword().set(extension.getDatabasePassword());
+      saveTask.getShutdownMode().set(extension.getShutdownMode());
+      saveTask.mustRunAfter("startH2", "restoreH2Snapshot");
+    });
+  }
+
+  private static void configureStartTask(Project project, StartH2Task startTask, H2ServerSettings server,
+                                         H2PluginExtension extension, Configuration classpath) {
+    startTask.setGroup(H2_CONFIGURATION_NAME);
+    startTask.getMainClass().set(server.getMainClass());
+    startTask.getArgumentProviders().add(new H2ServerArguments(project.provider(server::buildH2StartArgs)));
+    startTask.setClasspath(classpath);
+    startTask.getJvmArgumentProviders().add(new H2ServerArguments(project.provider(server::buildH2ServerJvmArgs)));
+    startTask.getTcpPort().set(server.getTcpPort());
+    startTask.getWebPort().set(server.getWebPort());
+    startTask.getStartupTimeout().set(server.getStartupTimeout());
+    startTask.getJdbcReadinessCheck().set(server.getJdbcReadinessCheck());
+    startTask.getServerMode().set(server.getServerMode());
+    startTask.getServerLogMaxSize().set(extension.getServerLogMaxSize());
+    startTask.getServerLogMaxFiles().set(extension.getServerLogMaxFiles());
+    startTask.getServerOutputLevel().set(extension.getServerOutputLevel());
+    startTask.getReuseServer().set(extension.getReuseServer());
+    startTask.getTcpPassword().set(server.getTcpPassword());
+    startTask.getJdbcUrl().set(project.provider(server::buildJdbcUrl));
+    startTask.getDatabaseUser().set(server.getDatabaseUser());
+    startTask.getDatabasePassword().set(server.getDatabasePassword());
+    startTask.getShutdownMode().set(server.getShutdownMode());
+    startTask.getStopTimeout().set(server.getStopTimeout());
+    addClassDataSharing(startTask, extension);
+  }
+
+  private static void configureStopTask(Project project, StopH2Task stopTask, H2ServerSettings server,
+                                        Configuration classpath) {
+    stopTask.setGroup(H2_CONFIGURATION_NAME);
+    stopTask.getH2Classpath().from(classpath);
+    stopTask.getTcpPort().set(server.getTcpPort());
+    stopTask.getTcpPassword().set(server.getTcpPassword());
+    stopTask.getJdbcUrl().set(project.provider(server::buildJdbcUrl));
+    stopTask.getDatabaseUser().set(server.getDatabaseUser());
+    stopTask.getDatabasePassword().set(server.getDatabasePassword());
+    stopTask.getShutdownMode().set(server.getShutdownMode());
+    stopTask.getStopTimeout().set(server.getStopTimeout());
+  }
+
+  private static void addClassDataSharing(JavaExec task, H2PluginExtension extension) {
+    Provider<JavaInstallationMetadata> launcher = task.getJavaLauncher().map(JavaLauncher::getMetadata);
+    Provider<Integer> javaVersion = launcher.map(metadata -> metadata.getLanguageVersion().asInt())
+                                            .orElse(Runtime.version().feature());
+    Provider<String> javaHome = launcher.map(metadata -> metadata.getInstallationPath().getAsFile().getAbsolutePath())
+                                        .orElse(System.getProperty("java.home"));
+    task.getJvmArgumentProviders().add(new ClassDataSharingArguments(extension.getClassDataSharing(), task.getClasspath(),
+                                                                     extension.getClassDataSharingArchiveDir(),
+                                                                     javaVersion, javaHome, true));
+  }
+
+  private static void configureSnapshotTask(AbstractH2SnapshotTask snapshotTask, H2PluginExtension extension) {
+    snapshotTask.getMigrationFiles().from(extension.getMigrationFiles());
+    snapshotTask.getRuntimeDependency().set(extension.getRuntimeDependency());
+    snapshotTask.getDatabaseName().set(extension.getDatabaseName());
+    snapshotTask.getBaseDir().set(extension.getBaseDir());
+    snapshotTask.getSnapshotCacheDir().set(extension.getSnapshotCacheDir());
+    snapshotTask.getSnapshotRetention().set(extension.getSnapshotRetention());
+    snapshotTask.getTcpPort().set(extension.getTcpPort());
+  }
+
+  /**
+   * Add a configuration and start and stop tasks for every server declared in {@code h2.servers}, and the
+   * {@code startAllH2} and {@code stopAllH2} tasks for all of them. Within {@code startAllH2} the start tasks only
+   * launch their servers and {@code startAllH2} waits for all of them at once.
+   *
+   * @param project The project using this plugin
+   * @param extension The extension of the project
+   */
+  void applyServers(Project project, H2PluginExtension extension) {
+    Provider<H2ReadinessService> readinessService = project.getGradle().getSharedServices().registerIfAbsent(
+      READINESS_SERVICE_NAME, H2ReadinessService.class, spec -> {});
+    TaskProvider<StartAllH2Task> startAll = project.getTasks().register("startAllH2", StartAllH2Task.class, task -> {
+      task.setGroup(H2_CONFIGURATION_NAME);
+      task.setDescription("Starts all H2 databases declared in h2.servers concurrently.");
+      task.usesService(readinessService);
+      task.getReadinessService().set(readinessService);
+    });
+    TaskProvider<Task> stopAll = project.getTasks().register("stopAllH2", task -> {
+      task.setGroup(H2_CONFIGURATION_NAME);
+      task.setDescription("Stops all H2 databases declared in h2.servers.");
+    });
+
+    extension.getServers().all(server -> {
+      inheritServerSettings(server, extension);
+      Configuration classpath = project.getConfigurations().create(server.configurationName(), configuration -> {
+        configuration.setDescription("The H2 runtime of the " + server.getName() + " server.");
+        configuration.setCanBeConsumed(false);
+        configuration.setCanBeResolved(true);
+        configuration.defaultDependencies(dependencies -> dependencies.add(
+          project.getDependencies().create(server.getRuntimeDependency().get())));
+      });
+      Provider<RegularFile> lockFile = project.getLayout().getBuildDirectory().file("h2/" + server.getName() + "/server.lock");
+      TaskProvider<StartH2Task> startTask = project.getTasks().register(server.taskName("start"), StartH2Task.class, task -> {
+        task.setDescription("Starts the " + server.getName() + " H2 database.");
+        configureStartTask(project, task, server, extension, classpath);
+        task.getServerLogFile().set(project.getLayout().getBuildDirectory().file("h2/" + server.getName() + "/server.log"));
+        task.getServerLockFile().set(lockFile);
+        task.usesService(readinessService);
+        task.getReadinessService().set(readinessService);
+      });
+      TaskProvider<StopH2Task> stopTask = project.getTasks().register(server.taskName("stop"), StopH2Task.class, task -> {
+        task.setDescription("Stops the " + server.getName() + " H2 database.");
+        configureStopTask(project, task, server, classpath);
+        task.getServerLockFile().set(lockFile);
+      });
+      startAll.configure(task -> task.dependsOn(startTask));
+      stopAll.configure(task -> task.dependsOn(stopTask));
+    });
+
+    String startAllPath = project.absoluteProjectPath("startAllH2");
+    project.getGradle().getTaskGraph().whenReady(taskGraph -> {
+      if (taskGraph.hasTask(startAllPath)) {
+        extension.getServers().forEach(server -> project.getTasks().named(server.taskName("start"), StartH2Task.class)
+                                                        .configure(task -> task.getDeferReadiness().set(true)));
+      }
+    });
+  }
+
+  /**
+   * The declared servers default to the settings of the {@code h2} extension, except for the ports, which have to be
+   * set, and the database name, which defaults to the server name.
+   */
+  private static void inheritServerSettings(H2ServerSpec server, H2PluginExtension extension) {
+    server.getMainClass().convention(extension.getMainClass());
+    server.getRuntimeDependency().convention(extension.getRuntimeDependency());
+    server.getTcpPort().convention((Integer) null);
+    server.getWebPort().convention((Integer) null);
+    server.getTcpPassword().convention(extension.getTcpPassword());
+    server.getWebAdminPassword().convention(extension.getWebAdminPassword());
+    server.getIfNotExists().convention(extension.getIfNotExists());
+    server.getTcpAllowOthers().convention(extension.getTcpAllowOthers());
+    server.getWebAllowOthers().convention(extension.getWebAllowOthers());
+    server.getBrowser().convention(extension.getBrowser());
+    server.getBaseDir().convention(extension.getBaseDir());
+    server.getStorage().convention(extension.getStorage());
+    server.getDatabaseName().convention(server.getName());
+    server.getDatabaseUser().convention(extension.getDatabaseUser());
+    server.getDatabasePassword().convention(extension.getDatabasePassword());
+    server.getCacheSize().convention(extension.getCacheSize());
+    server.getWriteDelay().convention(extension.getWriteDelay());
+    server.getLockTimeout().convention(extension.getLockTimeout());
+    server.getAutoCompactFillRate().convention(extension.getAutoCompactFillRate());
+    server.getMaxHeapSize().convention(extension.getMaxHeapSize());
+    server.getJvmArgs().convention(extension.getJvmArgs());
+    server.getServerMode().convention(extension.getServerMode());
+    server.getStartupTimeout().convention(extension.getStartupTimeout());
+    server.getJdbcReadinessCheck().convention(extension.getJdbcReadinessCheck());
+    server.getShutdownMode().convention(extension.getShutdownMode());
+    server.getStopTimeout().convention(extension.getStopTimeout());
+  }
+
+  /**
+   * Register the H2 server shared by all projects of the build. The first project applying the plugin configures it.
+   *
+   * @param project The project using this plugin
+   * @param extension The extension of the project
+   */
+  void applySharedServer(Project project, H2PluginExtension extension) {
+    Provider<H2ServerService> sharedServer = project.getGradle().getSharedServices().registerIfAbsent(
+      SHARED_SERVER_SERVICE_NAME, H2ServerService.class, spec -> {
+        H2ServerService.Params parameters = spec.getParameters();
+        parameters.getClasspath().from(extension.buildClassPathConfig(project));
+        parameters.getMainClass().set(extension.getMainClass());
+        parameters.getTcpPort().set(extension.getTcpPort());
+        parameters.getWebPort().set(extension.getWebPort());
+        parameters.getEphemeralPorts().set(extension.getEphemeralPorts());
+        parameters.getTcpPassword().set(extension.getTcpPassword());
+        parameters.getWebAdminPassword().set(extension.getWebAdminPassword());
+        parameters.getServerFlags().set(project.provider(extension::buildH2ServerFlags));
+        parameters.getJvmArgs().set(project.provider(extension::buildH2ServerJvmArgs));
+        parameters.getStartupTimeout().set(extension.getStartupTimeout());
+        parameters.getLogFile().set(project.getRootProject().getLayout().getBuildDirectory().file("h2/shared-server.log"));
+      });
+    extension.getSharedServer().set(sharedServer);
+    buildEventsListenerRegistry.onTaskCompletion(sharedServer);
+
+    @SuppressWarnings("unchecked")
+    BuildServiceRegistration<H2ServerService, H2ServerService.Params> registration =
+      (BuildServiceRegistration<H2ServerService, H2ServerService.Params>)
+        project.getGradle().getSharedServices().getRegistrations().getByName(SHARED_SERVER_SERVICE_NAME);
+    //the parameters are stored in the configuration cache, so the expected users survive a cache hit
+    project.getGradle().getTaskGraph().whenReady(taskGraph -> registration.getParameters().getExpectedUsers().addAll(
+      taskGraph.getAllTasks().stream()
+               .map(Task::getPath)
+               .filter(extension.getSharedServerUsers()::contains)
+               .collect(Collectors.toList())));
+  }
+
+  /**
+   * Sample the server side metrics from the start task until the stop task writes the report, for the default server
+   * and every declared server. The shared server is not sampled. {@code saveH2Snapshot} pauses sampling while it
+   * shuts the database down and copies its files.
+   *
+   * @param project The project using this plugin
+   * @param extension The extension of the project
+   */
+  void applyMetrics(Project project, H2PluginExtension extension) {
+    Provider<H2MetricsService> metricsService = project.getGradle().getSharedServices().registerIfAbsent(
+      METRICS_SERVICE_NAME, H2MetricsService.class, spec -> {});
+    extension.getMetricsReportDir().convention(project.getLayout().getBuildDirectory().dir("reports/h2"));
+
+    addMetricsSampling(project, "startH2", "stopH2", extension, extension, extension.buildClassPathConfig(project),
+                       extension.getMetricsReportDir(), metricsService);
+    extension.getServers().all(server -> addMetricsSampling(
+      project, server.taskName("start"), server.taskName("stop"), server, extension,
+      project.getConfigurations().getByName(server.configurationName()),
+      extension.getMetricsReportDir().dir(server.getName()), metricsService));
+    project.getTasks().withType(SaveH2SnapshotTask.class).configureEach(saveTask -> {
+      saveTask.usesService(metricsService);
+      saveTask.getMetricsService().set(metricsService);
+    });
+  }
+
+  private static void addMetricsSampling(Project project, String startTaskName, String stopTaskName,
+                                         H2ServerSettings server, H2PluginExtension extension,
+                                         Configuration classpath, Provider<Directory> reportDir,
+                                         Provider<H2MetricsService> metricsService) {
+    Provider<H2MetricsSampler.Settings> samplerSettings = project.provider(() -> new H2MetricsSampler.Settings(
+      server.buildJdbcUrl(), server.getDatabaseUser().get(), server.getDatabasePassword().get(),
+      extension.getMetricsInterval().get(), extension.getSlowQueryCount().get(), reportDir.get().getAsFile()));
+    Provider<Boolean> metrics = extension.getMetrics();
+
+    project.getTasks().named(startTaskName, task -> {
+      task.usesService(metricsService);
+      //an up-to-date start task would skip the action starting the sampler of a reused server
+      task.getOutputs().upToDateWhen(startTask -> !metrics.get());
+      task.doLast(new StartMetricsSamplingAction(metrics, metricsService, server.getTcpPort(), classpath,
+                                                 samplerSettings));
+    });
+    project.getTasks().named(stopTaskName, task -> {
+      task.usesService(metricsService);
+      task.doFirst(new WriteMetricsReportAction(metricsService, server.getTcpPort()));
+    });
+  }
+
+  /**
+   * Add the {@code h2} extension to every test task, so test tasks can opt into one cloned database per fork.
+   *
+   * @param project The project using this plugin
+   * @param extension The extension of the project
+   */
+  void applyTestIsolation(Project project, H2PluginExtension extension) {
+    project.getTasks().withType(Test.class).configureEach(test -> {
+      H2TestIsolationExtension isolation = test.getExtensions().create(H2_CONFIGURATION_NAME, H2TestIsolationExtension.class);
+      isolation.getTemplateDatabase().convention(extension.getDatabaseName());
+      //the snapshot holds the migrated database, not what the tests made of it
+      test.mustRunAfter("startH2", "saveH2Snapshot");
+
+      Provider<String> templateUrl = project.provider(() -> extension.buildJdbcUrl(isolation.getTemplateDatabase().get()));
+      Provider<List<String>> cloneUrls = project.provider(() -> IntStream.rangeClosed(1, test.getMaxParallelForks())
+        .mapToObj(slot -> extension.buildJdbcUrl(isolation.cloneDatabaseName(slot)))
+        .collect(Collectors.toList()));
+
+      Provider<Directory> slotLockDir = project.getLayout().getBuildDirectory().dir("h2/fork-slots/" + test.getName());
+      test.getJvmArgumentProviders().add(new ForkJdbcUrlArguments(isolation.getIsolatedForks(),
+                                                                  isolation.getJdbcUrlProperty(), cloneUrls,
+                                                                  slotLockDir));
+      test.doFirst(new CloneTemplateDatabaseAction(isolation.getIsolatedForks(), extension.buildClassPathConfig(project),
+                                                   templateUrl, cloneUrls, extension.getDatabaseUser(),
+                                                   extension.getDatabasePassword(), slotLockDir));
     });
   }
 }
@@ -1,87 +1,244 @@
 package edu.umich.med.michr.gradle;
 
+import edu.umich.med.michr.gradle.server.H2ServerService;
+import edu.umich.med.michr.gradle.server.SharedServerLease;
+import org.gradle.api.Action;
+import org.gradle.api.InvalidUserDataException;
+import org.gradle.api.NamedDomainObjectContainer;
 import org.gradle.api.Project;
+import org.gradle.api.Task;
 import org.gradle.api.artifacts.Configuration;
-import org.gradle.api.artifacts.Dependency;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.logging.LogLevel;
+import org.gradle.api.model.ObjectFactory;
 import org.gradle.api.provider.Property;
-import org.h2.engine.Constants;
+import org.gradle.api.provider.Provider;
 
-public abstract class H2PluginExtension {
-  static final String MAIN_CLASS="org.h2.tools.Server";
-  static final String RUNTIME_DEPENDENCY="com.h2database:h2:2.0.202";
-  private static final String DEFAULT_TCP_PASSWORD= "admin";
-  private static final String DEFAULT_WEB_ADMIN_PASSWORD= "admin";
+import javax.inject.Inject;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 
-  public abstract Property<String> getMainClass();
-  public abstract Property<String> getRuntimeDependency();
+public abstract class H2PluginExtension extends H2ServerSettings {
+  static final Duration DEFAULT_METRICS_INTERVAL = Duration.ofSeconds(1);
+  static final Duration DEFAULT_SNAPSHOT_RETENTION = Duration.ofDays(7);
+  static final int DEFAULT_SLOW_QUERY_COUNT = 10;
+  static final long DEFAULT_SERVER_LOG_MAX_SIZE = 10L * 1024 * 1024;
+  static final int DEFAULT_SERVER_LOG_MAX_FILES = 3;
 
-  public abstract Property<Integer> getTcpPort();
-  public abstract Property<Integer> getWebPort();
+  private final Set<String> sharedServerUsers = new LinkedHashSet<>();
+  private final NamedDomainObjectContainer<H2ServerSpec> servers;
 
-  public abstract Property<String> getTcpPassword();
-  public abstract Property<String> getWebAdminPassword();
+  /**
+   * @return The migration files a database snapshot is keyed on, snapshots are disabled while this is empty.
+   */
+  public abstract ConfigurableFileCollection getMigrationFiles();
+
+  /**
+   * @return The directory migrated database snapshots are cached in.
+   */
+  public abstract DirectoryProperty getSnapshotCacheDir();
+
+  /**
+   * @return How long a snapshot is kept after it was last saved or restored, older ones are deleted by the next save.
+   */
+  public abstract Property<Duration> getSnapshotRetention();
+
+  /**
+   * @return Whether the forked server JVM uses an AppCDS archive of the H2 classes, created on the first run.
+   */
+  public abstract Property<Boolean> getClassDataSharing();
+
+  /**
+   * @return The directory the AppCDS archives are cached in.
+   */
+  public abstract DirectoryProperty getClassDataSharingArchiveDir();
+
+  /**
+   * @return The log file the output of the forked server is written to.
+   */
+  public abstract RegularFileProperty getServerLogFile();
+
+  /**
+   * @return Size in bytes at which the server log is rolled over.
+   */
+  public abstract Property<Long> getServerLogMaxSize();
+
+  /**
+   * @return Number of rolled over server logs kept next to the server log.
+   */
+  public abstract Property<Integer> getServerLogMaxFiles();
+
+  /**
+   * @return Lowest level of server output also shown in the Gradle log. Standard output of the server is logged at
+   * {@link LogLevel#LIFECYCLE}, standard error at {@link LogLevel#ERROR}.
+   */
+  public abstract Property<LogLevel> getServerOutputLevel();
+
+  /**
+   * @return Whether {@code startH2} reuses a server left running by an earlier build that was started with the same
+   * settings, instead of failing on the port in use. Without reuse such a server is restarted.
+   */
+  public abstract Property<Boolean> getReuseServer();
+
+  /**
+   * @return The lock file recording the pid, ports and settings fingerprint of the running server.
+   */
+  public abstract RegularFileProperty getServerLockFile();
+
+  /**
+   * @return Whether the shared server listens on free ports picked at execution time instead of the configured ports,
+   * so several builds can run on one machine.
+   */
+  public abstract Property<Boolean> getEphemeralPorts();
+
+  /**
+   * @return Whether server side metrics are sampled while the server runs and reported when it stops.
+   */
+  public abstract Property<Boolean> getMetrics();
 
-  public abstract Property<Boolean> getIfNotExists();
-  public abstract Property<Boolean> getTcpAllowOthers();
-  public abstract Property<Boolean> getWebAllowOthers();
-  public abstract Property<Boolean> getBrowser();
+  /**
+   * @return Time between two samples of the server side metrics.
+   */
+  public abstract Property<Duration> getMetricsInterval();
+
+  /**
+   * @return Number of statements with the highest total execution time listed in the metrics report.
+   */
+  public abstract Property<Integer> getSlowQueryCount();
 
+  /**
+   * @return The directory the metrics report is written to.
+   */
+  public abstract DirectoryProperty getMetricsReportDir();
+
+  /**
+   * @return The H2 server shared by all projects of the build, see {@link #useSharedServer(Task)}.
+   */
+  public abstract Property<H2ServerService> getSharedServer();
+
+  @Inject
   @SuppressWarnings("java:S5993")
-  public H2PluginExtension() {
-    this.getMainClass().convention(MAIN_CLASS);
-    this.getRuntimeDependency().convention(RUNTIME_DEPENDENCY);
-    this.getTcpPort().convention(Constants.DEFAULT_TCP_PORT);
-    this.getWebPort().convention(Constants.DEFAULT_HTTP_PORT);
-    this.getTcpPassword().convention(DEFAULT_TCP_PASSWORD);
-    this.getWebAdminPassword().convention(DEFAULT_WEB_ADMIN_PASSWORD);
-    this.getIfNotExists().convention(true);
-    this.getTcpAllowOthers().convention(true);
-    this.getWebAllowOthers().convention(true);
-    this.getBrowser().convention(false);
+  public H2PluginExtension(ObjectFactory objects) {
+    this.servers = objects.domainObjectContainer(H2ServerSpec.class);
+    this.getEphemeralPorts().convention(false);
+    this.getClassDataSharing().convention(true);
+    this.getMetrics().convention(false);
+    this.getServerLogMaxSize().convention(DEFAULT_SERVER_LOG_MAX_SIZE);
+    this.getServerLogMaxFiles().convention(DEFAULT_SERVER_LOG_MAX_FILES);
+    this.getServerOutputLevel().convention(LogLevel.LIFECYCLE);
+    this.getReuseServer().convention(true);
+    this.getMetricsInterval().convention(DEFAULT_METRICS_INTERVAL);
+    this.getSlowQueryCount().convention(DEFAULT_SLOW_QUERY_COUNT);
+    this.getSnapshotRetention().convention(DEFAULT_SNAPSHOT_RETENTION);
   }
 
   /**
-   *
-   * @param project The gradle project that applies this plugin
-   * @return The gradle build dependency config that specifies the h2 jar file in the form of a maven artifact.
+   * @return Additional servers, each started by its own {@code start<Name>H2} task and all of them together by
+   * {@code startAllH2}. Their settings default to those of the {@code h2} extension except the ports, which must be set.
    */
-  public Configuration buildClassPathConfig(Project project){
-    final Dependency h2Dependency = project.getDependencies().create(getRuntimeDependency().get());
-    return project.getConfigurations().detachedConfiguration(h2Dependency);
+  public NamedDomainObjectContainer<H2ServerSpec> getServers(){
+    return servers;
   }
 
   /**
-   * Builds the parameters that will be passed to the main method of H2 db executable jar file to start the db.
-   * @return Main method arguments as a string for H2 db server
+   * Configures the additional servers.
+   * <pre>
+   * h2 {
+   *   servers {
+   *     audit { tcpPort = 9093; webPort = 8083 }
+   *   }
+   * }
+   * </pre>
+   * @param action The configuration of the server container
    */
-  public String buildH2StartMainArgs(){
-    String cmdArgs = String.format("-tcp -tcpPort %d -tcpPassword %s -web -webPort %d -webAdminPassword %s",
-                  getTcpPort().get(), getTcpPassword().get(), getWebPort().get(), getWebAdminPassword().get());
-    StringBuilder commandArgsBuilder = new StringBuilder(cmdArgs);
+  public void servers(Action<? super NamedDomainObjectContainer<H2ServerSpec>> action){
+    action.execute(servers);
+  }
 
-    if(getIfNotExists().get().equals(Boolean.TRUE)){
-      commandArgsBuilder.append(" -ifNotExists");
-    }else{
-      commandArgsBuilder.append(" -ifExists");
+  /**
+   * Validates the settings so misconfigurations fail the build at configuration time instead of in the server.
+   * @throws InvalidUserDataException if a setting is out of range
+   */
+  @Override
+  public void validate(){
+    super.validate();
+    validateRange("slowQueryCount", getSlowQueryCount(), 0, Integer.MAX_VALUE);
+    validateRange("serverLogMaxFiles", getServerLogMaxFiles(), 0, Integer.MAX_VALUE);
+    if(getServerLogMaxSize().get() <= 0){
+      throw new InvalidUserDataException("h2.serverLogMaxSize must be positive.");
     }
-    if(getTcpAllowOthers().get().equals(Boolean.TRUE)){
-      commandArgsBuilder.append(" -tcpAllowOthers");
+    if(getMetricsInterval().get().isNegative() || getMetricsInterval().get().isZero()){
+      throw new InvalidUserDataException("h2.metricsInterval must be positive.");
     }
-    if(getWebAllowOthers().get().equals(Boolean.TRUE)){
-      commandArgsBuilder.append(" -webAllowOthers");
+    if(getSnapshotRetention().get().isNegative()){
+      throw new InvalidUserDataException("h2.snapshotRetention must not be negative.");
     }
-    if(getBrowser().get().equals(Boolean.TRUE)){
-      commandArgsBuilder.append(" -browser");
+    if(!getMigrationFiles().isEmpty() && getStorage().get() != H2StorageMode.FILE){
+      throw new InvalidUserDataException("h2 database snapshots need FILE storage.");
     }
+    Map<Integer, String> serverPorts = new HashMap<>();
+    for(H2ServerSpec server : servers){
+      server.validate();
+      for(int port : Arrays.asList(server.getTcpPort().get(), server.getWebPort().get())){
+        String otherServer = serverPorts.putIfAbsent(port, server.getName());
+        if(otherServer != null){
+          throw new InvalidUserDataException(String.format("h2.servers.%s and h2.servers.%s both use port %d.",
+                                                           otherServer, server.getName(), port));
+        }
+      }
+    }
+  }
 
-    return commandArgsBuilder.toString();
+  /**
+   * The {@code h2} configuration is shared by all tasks of the project, so the H2 runtime is resolved once. It defaults
+   * to {@link #getRuntimeDependency()}, read when the configuration is resolved.
+   * @param project The gradle project that applies this plugin
+   * @return The gradle build dependency config that specifies the h2 jar file in the form of a maven artifact.
+   */
+  public Configuration buildClassPathConfig(Project project){
+    return project.getConfigurations().getByName(H2Plugin.H2_CONFIGURATION_NAME);
   }
 
   /**
-   * Builds the parameters that will be passed to the main method of H2 db executable jar file to stop the db.
-   * @return Main method arguments as a string for H2 db server
+   * Registers the task as a user of the H2 server shared by all projects of the build. The server is started before
+   * the first user runs and stopped once the last scheduled user has finished, or when the build ends.
+   * @param task The task that needs the database, e.g. a test task
    */
-  public String getH2StopMainArgs() {
-    return String.format("-tcpShutdown tcp://localhost:%d -tcpPassword %s",getTcpPort().get(),getTcpPassword().get());
+  public void useSharedServer(Task task){
+    task.usesService(getSharedServer());
+    task.doFirst(new SharedServerLease(getSharedServer()));
+    sharedServerUsers.add(task.getPath());
+  }
+
+  /**
+   * @return The tcp port of the shared server, allocated when first queried if {@link #getEphemeralPorts()} is set.
+   */
+  public Provider<Integer> getSharedServerTcpPort(){
+    return getSharedServer().map(H2ServerService::getTcpPort);
+  }
+
+  /**
+   * @return The web console port of the shared server, allocated when first queried if {@link #getEphemeralPorts()} is set.
+   */
+  public Provider<Integer> getSharedServerWebPort(){
+    return getSharedServer().map(H2ServerService::getWebPort);
+  }
+
+  /**
+   * @param database The database name as used in a H2 url, e.g. {@code mem:test} or {@code ./test}
+   * @return The JDBC url of the database on the shared server
+   */
+  public Provider<String> sharedServerJdbcUrl(String database){
+    return getSharedServer().map(server -> server.getJdbcUrl(database));
+  }
+
+  Set<String> getSharedServerUsers(){
+    return sharedServerUsers;
   }
 }
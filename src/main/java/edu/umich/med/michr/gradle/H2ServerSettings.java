@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle;
+
+import edu.umich.med.michr.gradle.server.H2ServerMode;
+import edu.umich.med.michr.gradle.server.H2ShutdownMode;
+import org.gradle.api.InvalidUserDataException;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.h2.engine.Constants;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Settings of one H2 server: how it is launched, the ports it listens on and the database the tasks connect to.
+ * The {@code h2} extension configures the default server, every entry of {@code h2.servers} an additional one.
+ */
+public abstract class H2ServerSettings {
+  private static final Logger LOGGER = Logging.getLogger(H2ServerSettings.class);
+  static final String MAIN_CLASS="org.h2.tools.Server";
+  static final String RUNTIME_DEPENDENCY="com.h2database:h2:2.0.202";
+  private static final String DEFAULT_TCP_PASSWORD= "admin";
+  private static final String DEFAULT_WEB_ADMIN_PASSWORD= "admin";
+  static final Duration DEFAULT_STARTUP_TIMEOUT = Duration.ofSeconds(30);
+  static final Duration DEFAULT_STOP_TIMEOUT = Duration.ofSeconds(10);
+
+  static final String DEFAULT_DATABASE_NAME = "test";
+  static final String DEFAULT_DATABASE_USER = "sa";
+  private static final int MAX_PORT = 65535;
+  private static final Pattern HEAP_SIZE_PATTERN = Pattern.compile("\\d+[kKmMgG]?");
+
+  public abstract Property<String> getMainClass();
+  public abstract Property<String> getRuntimeDependency();
+
+  public abstract Property<Integer> getTcpPort();
+  public abstract Property<Integer> getWebPort();
+
+  public abstract Property<String> getTcpPassword();
+  public abstract Property<String> getWebAdminPassword();
+
+  public abstract Property<Boolean> getIfNotExists();
+  public abstract Property<Boolean> getTcpAllowOthers();
+  public abstract Property<Boolean> getWebAllowOthers();
+  public abstract Property<Boolean> getBrowser();
+
+  /**
+   * @return The directory the server keeps its database files in, H2 uses the user home directory if not set.
+   */
+  public abstract DirectoryProperty getBaseDir();
+
+  /**
+   * @return Where the databases keep their data, {@link H2StorageMode#FILE} by default.
+   */
+  public abstract Property<H2StorageMode> getStorage();
+
+  /**
+   * @return The name of the database the plugin's tasks and {@link #buildJdbcUrl()} refer to.
+   */
+  public abstract Property<String> getDatabaseName();
+
+  /**
+   * @return The user the plugin's tasks connect to the database with.
+   */
+  public abstract Property<String> getDatabaseUser();
+
+  /**
+   * @return The password of {@link #getDatabaseUser()}.
+   */
+  public abstract Property<String> getDatabasePassword();
+
+  /**
+   * @return The {@code CACHE_SIZE} of the database in KB, the H2 default if not set.
+   */
+  public abstract Property<Integer> getCacheSize();
+
+  /**
+   * @return The {@code WRITE_DELAY} of the database in ms, higher values trade durability for speed.
+   */
+  public abstract Property<Integer> getWriteDelay();
+
+  /**
+   * @return The {@code LOCK_TIMEOUT} of the database in ms.
+   */
+  public abstract Property<Integer> getLockTimeout();
+
+  /**
+   * @return The MVStore {@code AUTO_COMPACT_FILL_RATE} of the database in percent, 0 disables auto compaction.
+   */
+  public abstract Property<Integer> getAutoCompactFillRate();
+
+  /**
+   * @return The maximum heap size of the server JVM, e.g. {@code 512m}.
+   */
+  public abstract Property<String> getMaxHeapSize();
+
+  /**
+   * @return Additional arguments of the server JVM, e.g. garbage collector flags.
+   */
+  public abstract ListProperty<String> getJvmArgs();
+
+  /**
+   * @return Whether the server runs in a forked JVM (the default) or inside the Gradle daemon.
+   */
+  public abstract Property<H2ServerMode> getServerMode();
+
+  /**
+   * @return How long the start task waits for the server to accept connections before failing the build.
+   */
+  public abstract Property<Duration> getStartupTimeout();
+
+  /**
+   * @return Whether readiness is additionally confirmed by running {@code SELECT 1} against an in-memory database.
+   * Creating that database remotely requires {@link #getIfNotExists()} to be true.
+   */
+  public abstract Property<Boolean> getJdbcReadinessCheck();
+
+  /**
+   * @return How the stop task closes the database before stopping the server, e.g. {@link H2ShutdownMode#COMPACT}
+   * to shrink the database files before a snapshot is saved.
+   */
+  public abstract Property<H2ShutdownMode> getShutdownMode();
+
+  /**
+   * @return How long the stop task waits for the server to stop before killing it.
+   */
+  public abstract Property<Duration> getStopTimeout();
+
+  @SuppressWarnings("java:S5993")
+  public H2ServerSettings() {
+    this.getMainClass().convention(MAIN_CLASS);
+    this.getRuntimeDependency().convention(RUNTIME_DEPENDENCY);
+    this.getTcpPort().convention(Constants.DEFAULT_TCP_PORT);
+    this.getWebPort().convention(Constants.DEFAULT_HTTP_PORT);
+    this.getTcpPassword().convention(DEFAULT_TCP_PASSWORD);
+    this.getWebAdminPassword().convention(DEFAULT_WEB_ADMIN_PASSWORD);
+    this.getIfNotExists().convention(true);
+    this.getTcpAllowOthers().convention(true);
+    this.getWebAllowOthers().convention(true);
+    this.getBrowser().convention(false);
+    this.getStartupTimeout().convention(DEFAULT_STARTUP_TIMEOUT);
+    this.getJdbcReadinessCheck().convention(false);
+    this.getStorage().convention(H2StorageMode.FILE);
+    this.getDatabaseName().convention(DEFAULT_DATABASE_NAME);
+    this.getDatabaseUser().convention(DEFAULT_DATABASE_USER);
+    this.getServerMode().convention(H2ServerMode.FORKED);
+    this.getDatabasePassword().convention("");
+    this.getShutdownMode().convention(H2ShutdownMode.DEFAULT);
+    this.getStopTimeout().convention(DEFAULT_STOP_TIMEOUT);
+  }
+
+  /**
+   * @return The name the settings are referred to by in error messages
+   */
+  String settingsName(){
+    return H2Plugin.H2_CONFIGURATION_NAME;
+  }
+
+  /**
+   * Validates the settings so misconfigurations fail the build at configuration time instead of in the server.
+   * @throws InvalidUserDataException if a setting is out of range
+   */
+  public void validate(){
+    validatePort("tcpPort", getTcpPort());
+    validatePort("webPort", getWebPort());
+    validateRange("cacheSize", getCacheSize(), 1, Integer.MAX_VALUE);
+    validateRange("writeDelay", getWriteDelay(), 0, Integer.MAX_VALUE);
+    validateRange("lockTimeout", getLockTimeout(), 0, Integer.MAX_VALUE);
+    validateRange("autoCompactFillRate", getAutoCompactFillRate(), 0, 100);
+    if(getMaxHeapSize().isPresent() && !HEAP_SIZE_PATTERN.matcher(getMaxHeapSize().get()).matches()){
+      throw new InvalidUserDataException(String.format("%s.maxHeapSize '%s' is not a valid heap size like 512m.",
+                                                       settingsName(), getMaxHeapSize().get()));
+    }
+    if(getStopTimeout().get().isNegative() || getStopTimeout().get().isZero()){
+      throw new InvalidUserDataException(settingsName() + ".stopTimeout must be positive.");
+    }
+    if(getDatabaseName().get().isBlank()){
+      throw new InvalidUserDataException(settingsName() + ".databaseName must not be blank.");
+    }
+    if(getServerMode().get() == H2ServerMode.IN_PROCESS && !buildH2ServerJvmArgs().isEmpty()){
+      LOGGER.warn("{}.maxHeapSize and {}.jvmArgs have no effect on an in-process H2 server.", settingsName(),
+                  settingsName());
+    }
+  }
+
+  private void validatePort(String name, Property<Integer> port){
+    if(!port.isPresent()){
+      throw new InvalidUserDataException(String.format("%s.%s must be set.", settingsName(), name));
+    }
+    if(port.get() < 0 || port.get() > MAX_PORT){
+      throw new InvalidUserDataException(String.format("%s.%s %d is not a valid port.", settingsName(), name,
+                                                       port.get()));
+    }
+  }
+
+  void validateRange(String name, Property<Integer> setting, int min, int max){
+    if(setting.isPresent() && (setting.get() < min || setting.get() > max)){
+      throw new InvalidUserDataException(String.format("%s.%s %d is not between %d and %d.", settingsName(), name,
+                                                       setting.get(), min, max));
+    }
+  }
+
+  /**
+   * Builds the parameters that will be passed to the main method of H2 db executable jar file to start the db.
+   * @return Main method arguments as a string for H2 db server
+   */
+  public String buildH2StartMainArgs(){
+    return String.join(" ", buildH2StartArgs());
+  }
+
+  /**
+   * Builds the parameters that will be passed to the main method of H2 db executable jar file to start the db.
+   * @return Main method arguments for H2 db server, one element per argument
+   */
+  public List<String> buildH2StartArgs(){
+    List<String> commandArgs = new ArrayList<>(Arrays.asList(
+      "-tcp", "-tcpPort", String.valueOf(getTcpPort().get()), "-tcpPassword", getTcpPassword().get(),
+      "-web", "-webPort", String.valueOf(getWebPort().get()), "-webAdminPassword", getWebAdminPassword().get()));
+    commandArgs.addAll(buildH2ServerFlags());
+    return commandArgs;
+  }
+
+  /**
+   * Builds the server options that do not depend on the ports the server listens on.
+   * @return Main method arguments for H2 db server other than the ports and passwords
+   */
+  public List<String> buildH2ServerFlags(){
+    List<String> flags = new ArrayList<>();
+
+    if(getIfNotExists().get().equals(Boolean.TRUE)){
+      flags.add("-ifNotExists");
+    }else{
+      flags.add("-ifExists");
+    }
+    if(getTcpAllowOthers().get().equals(Boolean.TRUE)){
+      flags.add("-tcpAllowOthers");
+    }
+    if(getWebAllowOthers().get().equals(Boolean.TRUE)){
+      flags.add("-webAllowOthers");
+    }
+    if(getBrowser().get().equals(Boolean.TRUE)){
+      flags.add("-browser");
+    }
+    if(getBaseDir().isPresent()){
+      flags.add("-baseDir");
+      flags.add(getBaseDir().get().getAsFile().getAbsolutePath());
+    }
+
+    return flags;
+  }
+
+  /**
+   * Builds the JDBC url of the configured database including its storage and tuning settings.
+   * @return JDBC url of {@link #getDatabaseName()} on this server
+   */
+  public String buildJdbcUrl(){
+    return buildJdbcUrl(getDatabaseName().get());
+  }
+
+  /**
+   * Builds the JDBC url of a database on this server including storage and tuning settings.
+   * @param databaseName Name of the database without storage prefix
+   * @return JDBC url of the database
+   */
+  public String buildJdbcUrl(String databaseName){
+    StringBuilder url = new StringBuilder(String.format("jdbc:h2:tcp://localhost:%d/%s%s", getTcpPort().get(),
+                                                        getStorage().get().getUrlPrefix(), databaseName));
+    if(getStorage().get() == H2StorageMode.MEMORY){
+      //keep the in-memory database alive between connections
+      url.append(";DB_CLOSE_DELAY=-1");
+    }
+    appendSetting(url, "CACHE_SIZE", getCacheSize());
+    appendSetting(url, "WRITE_DELAY", getWriteDelay());
+    appendSetting(url, "LOCK_TIMEOUT", getLockTimeout());
+    appendSetting(url, "AUTO_COMPACT_FILL_RATE", getAutoCompactFillRate());
+    return url.toString();
+  }
+
+  private static void appendSetting(StringBuilder url, String name, Property<Integer> setting){
+    if(setting.isPresent()){
+      url.append(';').append(name).append('=').append(setting.get());
+    }
+  }
+
+  /**
+   * Builds the arguments of the server JVM from the heap size and JVM arguments settings.
+   * @return JVM arguments for the H2 db server
+   */
+  public List<String> buildH2ServerJvmArgs(){
+    List<String> jvmArgs = new ArrayList<>();
+    if(getMaxHeapSize().isPresent()){
+      jvmArgs.add("-Xmx" + getMaxHeapSize().get());
+    }
+    jvmArgs.addAll(getJvmArgs().get());
+    return jvmArgs;
+  }
+
+  /**
+   * Builds the parameters that will be passed to the main method of H2 db executable jar file to stop the db.
+   * @return Main method arguments as a string for H2 db server
+   */
+  public String getH2StopMainArgs() {
+    return String.join(" ", buildH2StopArgs());
+  }
+
+  /**
+   * Builds the parameters that will be passed to the main method of H2 db executable jar file to stop the db.
+   * @return Main method arguments for H2 db server, one element per argument
+   */
+  public List<String> buildH2StopArgs() {
+    return Arrays.asList("-tcpShutdown", String.format("tcp://localhost:%d", getTcpPort().get()),
+                         "-tcpPassword", getTcpPassword().get());
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle;
+
+import org.gradle.api.Named;
+
+import javax.inject.Inject;
+
+/**
+ * An additional H2 server declared in {@code h2.servers}. The plugin adds {@code start<Name>H2} and
+ * {@code stop<Name>H2} tasks for it and makes {@code startAllH2} start it together with the other declared servers.
+ */
+public abstract class H2ServerSpec extends H2ServerSettings implements Named {
+  private final String name;
+
+  @Inject
+  public H2ServerSpec(String name) {
+    this.name = name;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  String settingsName() {
+    return "h2.servers." + name;
+  }
+
+  /**
+   * @param prefix Verb of the task, e.g. {@code start}
+   * @return Name of the task of this server, e.g. {@code startAuditH2}
+   */
+  String taskName(String prefix) {
+    return prefix + capitalizedName() + "H2";
+  }
+
+  /**
+   * @return Name of the configuration holding the H2 runtime of this server, e.g. {@code h2Audit}
+   */
+  String configurationName() {
+    return H2Plugin.H2_CONFIGURATION_NAME + capitalizedName();
+  }
+
+  private String capitalizedName() {
+    return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+  }
+}
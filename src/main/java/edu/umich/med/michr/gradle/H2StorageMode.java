@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle;
+
+/**
+ * Where the databases served by the H2 server keep their data.
+ */
+public enum H2StorageMode {
+  /**
+   * Database files in the base directory of the server.
+   */
+  FILE("./"),
+  /**
+   * Databases held on the heap of the server, gone once the server stops.
+   */
+  MEMORY("mem:"),
+  /**
+   * Database files in an in-memory file system outside of the heap of the server, gone once the server stops.
+   */
+  NIO_MEM_FS("nioMemFS:");
+
+  private final String urlPrefix;
+
+  H2StorageMode(String urlPrefix) {
+    this.urlPrefix = urlPrefix;
+  }
+
+  /**
+   * @return The prefix of a database name in a H2 url selecting this storage
+   */
+  public String getUrlPrefix() {
+    return urlPrefix;
+  }
+}
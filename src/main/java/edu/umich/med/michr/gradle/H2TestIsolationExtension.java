@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle;
+
+import org.gradle.api.provider.Property;
+
+/**
+ * DSL extension added as {@code h2} to every {@link org.gradle.api.tasks.testing.Test} task. When enabled, the
+ * template database is cloned into one database per test fork before the tests run, and every fork finds the JDBC url
+ * of its own database in the system property {@code <jdbcUrlProperty>}. The slot of a fork is claimed by the
+ * {@link edu.umich.med.michr.gradle.server.ForkSlotAgent} the test JVMs are started with, Gradle numbers its test
+ * workers without gaps only by chance.
+ * <pre>
+ * test {
+ *   maxParallelForks = 4
+ *   h2 { isolatedForks = true }
+ * }
+ * </pre>
+ */
+public abstract class H2TestIsolationExtension {
+  static final String DEFAULT_JDBC_URL_PROPERTY = "h2.jdbc.url";
+
+  /**
+   * @return Whether every test fork gets its own clone of the template database
+   */
+  public abstract Property<Boolean> getIsolatedForks();
+
+  /**
+   * @return The name of the migrated database the clones are made from, the h2 databaseName by default
+   */
+  public abstract Property<String> getTemplateDatabase();
+
+  /**
+   * @return The prefix of the system properties holding the JDBC urls of the clones
+   */
+  public abstract Property<String> getJdbcUrlProperty();
+
+  @SuppressWarnings("java:S5993")
+  public H2TestIsolationExtension() {
+    this.getIsolatedForks().convention(false);
+    this.getJdbcUrlProperty().convention(DEFAULT_JDBC_URL_PROPERTY);
+  }
+
+  /**
+   * @param slot Slot of the test fork, starting at 1
+   * @return The name of the database cloned for the fork
+   */
+  public String cloneDatabaseName(int slot) {
+    return getTemplateDatabase().get() + "_fork" + slot;
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming reader for RFC 4180 CSV: comma separated, fields optionally enclosed in double quotes, quotes inside quoted
+ * fields doubled, and line breaks allowed inside quoted fields. Only one record is held in memory at a time. As with
+ * H2's {@code CSVREAD}, an empty unquoted field is read as {@code null}. A line without any characters is read as a
+ * record without fields, it is up to the caller whether that is a blank line or the single {@code null} field
+ * {@link CsvWriter} writes the same way.
+ */
+public class CsvReader implements Closeable {
+  private static final char SEPARATOR = ',';
+  private static final char QUOTE = '"';
+  private static final int END = -1;
+
+  private final Reader reader;
+  private int next;
+
+  /**
+   * @param reader Source of the CSV text, should be buffered
+   */
+  public CsvReader(Reader reader) {
+    this.reader = reader;
+  }
+
+  /**
+   * @return The fields of the next record, empty for a line without any characters, or {@code null} at the end of the
+   * input
+   * @throws IOException if the input can not be read or a quoted field is not terminated
+   */
+  public List<String> readRecord() throws IOException {
+    next = reader.read();
+    if (next == END) {
+      return null;
+    }
+    List<String> fields = new ArrayList<>();
+    if (next == '\n' || next == '\r') {
+      skipLineEnd();
+      return fields;
+    }
+    while (true) {
+      fields.add(next == QUOTE ? readQuotedField() : readField());
+      if (next != SEPARATOR && next != '\n' && next != '\r' && next != END) {
+        throw new IOException("Unexpected character after a quoted field in CSV record.");
+      }
+      if (next == SEPARATOR) {
+        next = reader.read();
+        continue;
+      }
+      skipLineEnd();
+      return fields;
+    }
+  }
+
+  private void skipLineEnd() throws IOException {
+    if (next == '\r') {
+      next = reader.read();
+      if (next != '\n' && next != END) {
+        throw new IOException("Unexpected carriage return in CSV record.");
+      }
+    }
+  }
+
+  private String readField() throws IOException {
+    StringBuilder field = new StringBuilder();
+    while (next != SEPARATOR && next != '\n' && next != '\r' && next != END) {
+      field.append((char) next);
+      next = reader.read();
+    }
+    return field.length() == 0 ? null : field.toString();
+  }
+
+  private String readQuotedField() throws IOException {
+    StringBuilder field = new StringBuilder();
+    while (true) {
+      next = reader.read();
+      if (next == END) {
+        throw new IOException("Unterminated quoted field in CSV record.");
+      }
+      if (next == QUOTE) {
+        next = reader.read();
+        if (next != QUOTE) {
+          return field.toString();
+        }
+      }
+      field.append((char) next);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+}
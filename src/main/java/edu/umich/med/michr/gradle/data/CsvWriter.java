@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Streaming writer for the RFC 4180 CSV read by {@link CsvReader}. Fields containing separators, quotes or line breaks
+ * are enclosed in double quotes, {@code null} is written as an empty unquoted field and an empty string as {@code ""},
+ * so both survive a round trip.
+ */
+public class CsvWriter implements Closeable {
+  private static final char SEPARATOR = ',';
+  private static final char QUOTE = '"';
+
+  private final Writer writer;
+
+  /**
+   * @param writer Target of the CSV text, should be buffered
+   */
+  public CsvWriter(Writer writer) {
+    this.writer = writer;
+  }
+
+  /**
+   * @param fields The fields of the record, {@code null} for SQL {@code NULL}
+   * @throws IOException if the record can not be written
+   */
+  public void writeRecord(List<String> fields) throws IOException {
+    for (int i = 0; i < fields.size(); i++) {
+      if (i > 0) {
+        writer.write(SEPARATOR);
+      }
+      writeField(fields.get(i));
+    }
+    writer.write('\n');
+  }
+
+  private void writeField(String field) throws IOException {
+    if (field == null) {
+      return;
+    }
+    if (!field.isEmpty() && field.chars().noneMatch(c -> c == SEPARATOR || c == QUOTE || c == '\n' || c == '\r')) {
+      writer.write(field);
+      return;
+    }
+    writer.write(QUOTE);
+    writer.write(field.replace("\"", "\"\""));
+    writer.write(QUOTE);
+  }
+
+  @Override
+  public void close() throws IOException {
+    writer.close();
+  }
+}
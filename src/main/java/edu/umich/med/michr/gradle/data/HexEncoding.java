@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.data;
+
+import java.sql.Types;
+
+/**
+ * Hexadecimal text form of binary column values, used where a value has to be written as text, e.g. in CSV files.
+ * Binary values do not survive as strings: H2 reads them as hex, but turns a string written to a binary column into
+ * its UTF-8 bytes, so both directions encode explicitly.
+ */
+public final class HexEncoding {
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  private HexEncoding() {
+  }
+
+  /**
+   * @param sqlType The {@link Types} constant of a column
+   * @return Whether the column holds binary values
+   */
+  public static boolean isBinary(int sqlType) {
+    return sqlType == Types.BINARY || sqlType == Types.VARBINARY || sqlType == Types.LONGVARBINARY
+           || sqlType == Types.BLOB;
+  }
+
+  /**
+   * @param bytes The value, may be {@code null}
+   * @return The value as upper case hex digits, {@code null} for {@code null}
+   */
+  public static String encode(byte[] bytes) {
+    if (bytes == null) {
+      return null;
+    }
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+    }
+    return hex.toString();
+  }
+
+  /**
+   * @param hex Hex digits in either case, may be {@code null}
+   * @return The bytes, {@code null} for {@code null}
+   * @throws IllegalArgumentException if the text is not an even number of hex digits
+   */
+  public static byte[] decode(String hex) {
+    if (hex == null) {
+      return null;
+    }
+    if (hex.length() % 2 != 0) {
+      throw new IllegalArgumentException("Odd number of hex digits in binary value " + hex);
+    }
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      int high = Character.digit(hex.charAt(2 * i), 16);
+      int low = Character.digit(hex.charAt(2 * i + 1), 16);
+      if (high < 0 || low < 0) {
+        throw new IllegalArgumentException("Invalid hex digit in binary value " + hex);
+      }
+      bytes[i] = (byte) ((high << 4) | low);
+    }
+    return bytes;
+  }
+}
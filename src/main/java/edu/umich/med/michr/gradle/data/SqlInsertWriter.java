@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+
+/**
+ * Streaming writer of one {@code INSERT} statement per row, runnable with H2's {@code RUNSCRIPT}. Only the current row
+ * is held in memory.
+ */
+public class SqlInsertWriter implements Closeable {
+  private final Writer writer;
+  private final String insertPrefix;
+
+  /**
+   * @param writer  Target of the SQL text, should be buffered
+   * @param table   Quoted, schema qualified name of the table, e.g. {@code "PUBLIC"."PERSON"}
+   * @param columns Quoted names of the columns in the order of the values
+   */
+  public SqlInsertWriter(Writer writer, String table, List<String> columns) {
+    this.writer = writer;
+    this.insertPrefix = "INSERT INTO " + table + " (" + String.join(", ", columns) + ") VALUES (";
+  }
+
+  /**
+   * @param values SQL literals of the row, see {@link #literal(ResultSet, int, int)}
+   * @throws IOException if the statement can not be written
+   */
+  public void writeRow(List<String> values) throws IOException {
+    writer.write(insertPrefix);
+    writer.write(String.join(", ", values));
+    writer.write(");\n");
+  }
+
+  /**
+   * @param identifier Name of a schema, table or column, exactly as it is stored in the database
+   * @return The identifier as quoted identifier, which keeps its case and may contain any character
+   */
+  public static String quoteIdentifier(String identifier) {
+    return '"' + identifier.replace("\"", "\"\"") + '"';
+  }
+
+  /**
+   * @param row     The result set positioned on the row
+   * @param column  Index of the column, starting at 1
+   * @param sqlType The {@link Types} constant of the column
+   * @return The value of the column as SQL literal
+   * @throws SQLException if the value can not be read
+   */
+  public static String literal(ResultSet row, int column, int sqlType) throws SQLException {
+    if (HexEncoding.isBinary(sqlType)) {
+      byte[] bytes = row.getBytes(column);
+      return bytes == null ? "NULL" : "X'" + HexEncoding.encode(bytes) + "'";
+    }
+    switch (sqlType) {
+      case Types.BIT:
+      case Types.BOOLEAN:
+      case Types.TINYINT:
+      case Types.SMALLINT:
+      case Types.INTEGER:
+      case Types.BIGINT:
+      case Types.REAL:
+      case Types.FLOAT:
+      case Types.DOUBLE:
+      case Types.NUMERIC:
+      case Types.DECIMAL:
+        String number = row.getString(column);
+        return number == null ? "NULL" : number;
+      default:
+        String text = row.getString(column);
+        return text == null ? "NULL" : "'" + text.replace("'", "''") + "'";
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    writer.close();
+  }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.metrics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Server side metrics of one run of the H2 server, aggregated from the samples of a {@link H2MetricsSampler}.
+ * Peaks are taken over the samples, so events shorter than the sampling interval may be missed.
+ */
+public final class H2MetricsReport {
+  static final String JSON_FILE_NAME = "h2-metrics.json";
+  static final String HTML_FILE_NAME = "h2-metrics.html";
+
+  private final long startNanos;
+  private long durationMillis;
+  private int samples;
+  private int peakConnections;
+  private int peakBlockedSessions;
+  private int blockedSessionSamples;
+  private int peakLocks;
+  private Long initialFileSize;
+  private Long finalFileSize;
+  private String cacheHitRatio;
+  private final List<SlowQuery> slowQueries = new ArrayList<>();
+
+  H2MetricsReport(long startNanos) {
+    this.startNanos = startNanos;
+  }
+
+  /**
+   * Adds one sample of the server state.
+   *
+   * @param connections     Open sessions, not counting the session of the sampler
+   * @param blockedSessions Sessions waiting for a lock held by another session
+   * @param locks           Table locks held
+   * @param fileSize        Size of the database file in bytes, null for in-memory databases
+   * @param hitRatio        Page cache hit ratio reported by the store, null if not reported
+   */
+  void recordSample(int connections, int blockedSessions, int locks, Long fileSize, String hitRatio) {
+    samples++;
+    peakConnections = Math.max(peakConnections, connections);
+    peakBlockedSessions = Math.max(peakBlockedSessions, blockedSessions);
+    peakLocks = Math.max(peakLocks, locks);
+    if (blockedSessions > 0) {
+      blockedSessionSamples++;
+    }
+    if (fileSize != null) {
+      if (initialFileSize == null) {
+        initialFileSize = fileSize;
+      }
+      finalFileSize = fileSize;
+    }
+    if (hitRatio != null) {
+      cacheHitRatio = hitRatio;
+    }
+  }
+
+  void finish(long endNanos, List<SlowQuery> topQueries) {
+    durationMillis = (endNanos - startNanos) / 1_000_000;
+    slowQueries.clear();
+    slowQueries.addAll(topQueries);
+  }
+
+  public long getDurationMillis() {
+    return durationMillis;
+  }
+
+  public int getSamples() {
+    return samples;
+  }
+
+  public int getPeakConnections() {
+    return peakConnections;
+  }
+
+  public int getPeakBlockedSessions() {
+    return peakBlockedSessions;
+  }
+
+  /**
+   * @return Number of samples in which at least one session was waiting for a lock
+   */
+  public int getBlockedSessionSamples() {
+    return blockedSessionSamples;
+  }
+
+  public int getPeakLocks() {
+    return peakLocks;
+  }
+
+  /**
+   * @return Growth of the database file in bytes between the first and the last sample, null for in-memory databases
+   */
+  public Long getFileGrowth() {
+    return initialFileSize == null ? null : finalFileSize - initialFileSize;
+  }
+
+  /**
+   * @return The statements with the highest cumulative execution time, slowest first
+   */
+  public List<SlowQuery> getSlowQueries() {
+    return Collections.unmodifiableList(slowQueries);
+  }
+
+  /**
+   * Writes the report as JSON and HTML into a directory.
+   *
+   * @param reportDir Directory to write the report to, created if missing
+   * @return The HTML report
+   * @throws IOException if the report could not be written
+   */
+  public Path write(Path reportDir) throws IOException {
+    Files.createDirectories(reportDir);
+    Files.write(reportDir.resolve(JSON_FILE_NAME), toJson().getBytes(StandardCharsets.UTF_8));
+    Path html = reportDir.resolve(HTML_FILE_NAME);
+    Files.write(html, toHtml().getBytes(StandardCharsets.UTF_8));
+    return html;
+  }
+
+  String toJson() {
+    StringBuilder json = new StringBuilder("{\n");
+    json.append("  \"durationMillis\": ").append(durationMillis).append(",\n");
+    json.append("  \"samples\": ").append(samples).append(",\n");
+    json.append("  \"peakConnections\": ").append(peakConnections).append(",\n");
+    json.append("  \"peakBlockedSessions\": ").append(peakBlockedSessions).append(",\n");
+    json.append("  \"blockedSessionSamples\": ").append(blockedSessionSamples).append(",\n");
+    json.append("  \"peakLocks\": ").append(peakLocks).append(",\n");
+    json.append("  \"initialFileSize\": ").append(initialFileSize).append(",\n");
+    json.append("  \"finalFileSize\": ").append(finalFileSize).append(",\n");
+    json.append("  \"cacheHitRatio\": ").append(cacheHitRatio == null ? "null" : jsonString(cacheHitRatio)).append(",\n");
+    json.append("  \"slowQueries\": [");
+    for (int i = 0; i < slowQueries.size(); i++) {
+      SlowQuery query = slowQueries.get(i);
+      json.append(i == 0 ? "\n" : ",\n")
+          .append("    {\"sql\": ").append(jsonString(query.getSql()))
+          .append(", \"executionCount\": ").append(query.getExecutionCount())
+          .append(", \"cumulativeMillis\": ").append(formatMillis(query.getCumulativeMillis()))
+          .append(", \"averageMillis\": ").append(formatMillis(query.getAverageMillis()))
+          .append(", \"maxMillis\": ").append(formatMillis(query.getMaxMillis())).append('}');
+    }
+    json.append(slowQueries.isEmpty() ? "]\n" : "\n  ]\n").append("}\n");
+    return json.toString();
+  }
+
+  String toHtml() {
+    StringBuilder html = new StringBuilder("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\">")
+      .append("<title>H2 server metrics</title></head><body>\n<h1>H2 server metrics</h1>\n<table>\n");
+    appendRow(html, "Sampled for", durationMillis + " ms (" + samples + " samples)");
+    appendRow(html, "Peak connections", String.valueOf(peakConnections));
+    appendRow(html, "Peak sessions waiting for a lock", String.valueOf(peakBlockedSessions));
+    appendRow(html, "Samples with lock waits", String.valueOf(blockedSessionSamples));
+    appendRow(html, "Peak locks", String.valueOf(peakLocks));
+    appendRow(html, "File store growth", getFileGrowth() == null ? "in-memory" : getFileGrowth() + " bytes");
+    appendRow(html, "Cache hit ratio", cacheHitRatio == null ? "n/a" : cacheHitRatio);
+    html.append("</table>\n<h2>Slowest statements</h2>\n<table>\n")
+        .append("<tr><th>Statement</th><th>Executions</th><th>Total ms</th><th>Average ms</th><th>Max ms</th></tr>\n");
+    for (SlowQuery query : slowQueries) {
+      html.append("<tr><td><code>").append(escapeHtml(query.getSql())).append("</code></td><td>")
+          .append(query.getExecutionCount()).append("</td><td>")
+          .append(formatMillis(query.getCumulativeMillis())).append("</td><td>")
+          .append(formatMillis(query.getAverageMillis())).append("</td><td>")
+          .append(formatMillis(query.getMaxMillis())).append("</td></tr>\n");
+    }
+    return html.append("</table>\n</body></html>\n").toString();
+  }
+
+  private static void appendRow(StringBuilder html, String name, String value) {
+    html.append("<tr><th>").append(name).append("</th><td>").append(escapeHtml(value)).append("</td></tr>\n");
+  }
+
+  private static String formatMillis(double millis) {
+    return String.format(Locale.ROOT, "%.3f", millis);
+  }
+
+  private static String jsonString(String value) {
+    StringBuilder json = new StringBuilder("\"");
+    for (char c : value.toCharArray()) {
+      switch (c) {
+        case '"':
+          json.append("\\\"");
+          break;
+        case '\\':
+          json.append("\\\\");
+          break;
+        case '\n':
+          json.append("\\n");
+          break;
+        case '\r':
+          json.append("\\r");
+          break;
+        case '\t':
+          json.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            json.append(String.format("\\u%04x", (int) c));
+          } else {
+            json.append(c);
+          }
+      }
+    }
+    return json.append('"').toString();
+  }
+
+  private static String escapeHtml(String value) {
+    return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+  }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.metrics;
+
+import edu.umich.med.michr.gradle.server.H2JdbcDriver;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically samples {@code INFORMATION_SCHEMA} of a database over a single JDBC connection of its own: open and
+ * blocked sessions, locks, file size and cache hit ratio. Query statistics are switched on when the sampler connects
+ * and read once when it finishes. Seeing the sessions of other users and switching on query statistics needs an admin
+ * user, like the default {@code sa}. The columns of {@code INFORMATION_SCHEMA.SETTINGS} are looked up in the metadata,
+ * they differ between H2 1.4.x and 2.x.
+ */
+public class H2MetricsSampler implements AutoCloseable {
+  private static final Logger LOGGER = Logging.getLogger(H2MetricsSampler.class);
+  private static final String SESSIONS_SQL = "SELECT COUNT(*), COUNT(BLOCKER_ID) FROM INFORMATION_SCHEMA.SESSIONS";
+  private static final String LOCKS_SQL = "SELECT COUNT(*) FROM INFORMATION_SCHEMA.LOCKS";
+  private static final String STORE_SQL = "SELECT %1$s, %2$s FROM INFORMATION_SCHEMA.SETTINGS"
+                                          + " WHERE %1$s IN ('info.FILE_SIZE', 'info.CACHE_HIT_RATIO')";
+  //H2 2.x renamed the columns of INFORMATION_SCHEMA.SETTINGS, 1.4.x calls them NAME and VALUE
+  private static final String STORE_SQL_2 = String.format(STORE_SQL, "SETTING_NAME", "SETTING_VALUE");
+  private static final String STORE_SQL_1 = String.format(STORE_SQL, "NAME", "VALUE");
+  private static final String QUERY_STATISTICS_SQL = "SELECT SQL_STATEMENT, EXECUTION_COUNT, CUMULATIVE_EXECUTION_TIME,"
+                                                     + " MAX_EXECUTION_TIME FROM INFORMATION_SCHEMA.QUERY_STATISTICS"
+                                                     + " ORDER BY CUMULATIVE_EXECUTION_TIME DESC";
+  private static final Set<String> OWN_STATEMENTS = Set.of(SESSIONS_SQL, LOCKS_SQL, STORE_SQL_1, STORE_SQL_2,
+                                                            QUERY_STATISTICS_SQL);
+  private static final int QUERY_STATISTICS_MAX_ENTRIES = 1000;
+  private static final long STOP_TIMEOUT_SECONDS = 5;
+
+  private final H2JdbcDriver driver;
+  private final Settings settings;
+  private final H2MetricsReport report = new H2MetricsReport(System.nanoTime());
+  private ScheduledExecutorService scheduler;
+  private Connection connection;
+  private String storeSql;
+  private boolean samplingFailureReported;
+  private boolean paused;
+
+  /**
+   * @param driver   Driver of the H2 version the server runs
+   * @param settings What to sample and where to report it
+   */
+  public H2MetricsSampler(H2JdbcDriver driver, Settings settings) {
+    this.driver = driver;
+    this.settings = settings;
+  }
+
+  /**
+   * @return The directory the report of this sampler is written to
+   */
+  public Path getReportDir() {
+    return settings.reportDir.toPath();
+  }
+
+  /**
+   * Starts sampling on a daemon thread. Samples failing because the server is unreachable are skipped.
+   */
+  public synchronized void start() {
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "h2-metrics-sampler");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this::sampleQuietly, 0, settings.interval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Suspends sampling and closes the connection of the sampler, so the database can be shut down and its files copied
+   * without the sampler opening it again. A sample in progress completes before this returns.
+   */
+  public synchronized void pause() {
+    paused = true;
+    closeConnection();
+  }
+
+  /**
+   * Continues sampling after {@link #pause()}, over a new connection.
+   */
+  public synchronized void resume() {
+    paused = false;
+  }
+
+  /**
+   * Stops sampling, takes a last sample and reads the query statistics. Has to run before the server stops.
+   *
+   * @return The report of all samples taken
+   */
+  public H2MetricsReport finish() {
+    stopScheduler();
+    synchronized (this) {
+      List<SlowQuery> slowQueries = new ArrayList<>();
+      try {
+        sample();
+        slowQueries = readSlowQueries();
+      } catch (SQLException e) {
+        LOGGER.warn("Could not read the final H2 metrics, the report only covers earlier samples.", e);
+      }
+      report.finish(System.nanoTime(), slowQueries);
+      closeConnection();
+      return report;
+    }
+  }
+
+  @Override
+  public void close() {
+    stopScheduler();
+    synchronized (this) {
+      closeConnection();
+    }
+  }
+
+  private synchronized void sampleQuietly() {
+    if (paused) {
+      return;
+    }
+    boolean connected = false;
+    try {
+      connection();
+      connected = true;
+      sample();
+    } catch (SQLException e) {
+      //an unreachable server is expected while it starts or stops, a failing sample on a live connection is not
+      if (connected && !samplingFailureReported) {
+        samplingFailureReported = true;
+        LOGGER.warn("Could not sample the H2 metrics of {}, the report may be incomplete: {}", settings.jdbcUrl,
+                    e.getMessage());
+      } else {
+        LOGGER.debug("Could not sample the H2 metrics.", e);
+      }
+      closeConnection();
+    }
+  }
+
+  private void sample() throws SQLException {
+    try (Statement statement = connection().createStatement()) {
+      int connections;
+      int blockedSessions;
+      try (ResultSet sessions = statement.executeQuery(SESSIONS_SQL)) {
+        sessions.next();
+        //not counting the session of the sampler
+        connections = sessions.getInt(1) - 1;
+        blockedSessions = sessions.getInt(2);
+      }
+      int locks;
+      try (ResultSet lockCount = statement.executeQuery(LOCKS_SQL)) {
+        lockCount.next();
+        locks = lockCount.getInt(1);
+      }
+      Long fileSize = null;
+      String hitRatio = null;
+      try (ResultSet settings = statement.executeQuery(storeSql)) {
+        while (settings.next()) {
+          if ("info.FILE_SIZE".equals(settings.getString(1))) {
+            fileSize = Long.valueOf(settings.getString(2));
+          } else {
+            hitRatio = settings.getString(2);
+          }
+        }
+      }
+      report.recordSample(connections, blockedSessions, locks, fileSize, hitRatio);
+    }
+  }
+
+  private List<SlowQuery> readSlowQueries() throws SQLException {
+    List<SlowQuery> slowQueries = new ArrayList<>();
+    try (Statement statement = connection().createStatement();
+         ResultSet statistics = statement.executeQuery(QUERY_STATISTICS_SQL)) {
+      while (slowQueries.size() < settings.slowQueryCount && statistics.next()) {
+        String sql = statistics.getString(1);
+        if (!OWN_STATEMENTS.contains(sql) && !sql.startsWith("SET QUERY_STATISTICS")) {
+          slowQueries.add(new SlowQuery(sql, statistics.getLong(2), statistics.getDouble(3), statistics.getDouble(4)));
+        }
+      }
+    }
+    return slowQueries;
+  }
+
+  private Connection connection() throws SQLException {
+    if (connection == null) {
+      connection = driver.connect(settings.jdbcUrl, settings.user, settings.password);
+      storeSql = hasColumn(connection, "SETTINGS", "SETTING_NAME") ? STORE_SQL_2 : STORE_SQL_1;
+      try (Statement statement = connection.createStatement()) {
+        statement.execute("SET QUERY_STATISTICS_MAX_ENTRIES " + QUERY_STATISTICS_MAX_ENTRIES);
+        statement.execute("SET QUERY_STATISTICS TRUE");
+      } catch (SQLException e) {
+        LOGGER.warn("Could not switch on the H2 query statistics, the report will not list slow queries: {}",
+                    e.getMessage());
+      }
+    }
+    return connection;
+  }
+
+  private static boolean hasColumn(Connection connection, String table, String column) throws SQLException {
+    try (ResultSet columns = connection.getMetaData().getColumns(null, "INFORMATION_SCHEMA", table, column)) {
+      return columns.next();
+    }
+  }
+
+  private void stopScheduler() {
+    ScheduledExecutorService running;
+    synchronized (this) {
+      running = scheduler;
+      scheduler = null;
+    }
+    if (running != null) {
+      running.shutdownNow();
+      try {
+        running.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void closeConnection() {
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (SQLException e) {
+        LOGGER.debug("Could not close the H2 metrics connection.", e);
+      }
+      connection = null;
+    }
+  }
+
+  /**
+   * Settings of a sampler, taken from the extension when the build is configured.
+   */
+  public static final class Settings {
+    private final String jdbcUrl;
+    private final String user;
+    private final String password;
+    private final Duration interval;
+    private final int slowQueryCount;
+    private final File reportDir;
+
+    /**
+     * @param jdbcUrl        JDBC url of the database to sample
+     * @param user           Database user
+     * @param password       Password of the database user
+     * @param interval       Time between two samples
+     * @param slowQueryCount Number of statements listed in the report
+     * @param reportDir      Directory the report is written to
+     */
+    public Settings(String jdbcUrl, String user, String password, Duration interval, int slowQueryCount,
+                    File reportDir) {
+      this.jdbcUrl = jdbcUrl;
+      this.user = user;
+      this.password = password;
+      this.interval = interval;
+      this.slowQueryCount = slowQueryCount;
+      this.reportDir = reportDir;
+    }
+  }
+}
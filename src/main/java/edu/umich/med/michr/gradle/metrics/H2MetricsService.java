@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.metrics;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the {@link H2MetricsSampler} of every server started in the build, keyed by tcp port, from the start task to
+ * the stop task. Samplers of servers still running when the build ends write their report when Gradle closes the
+ * service.
+ */
+public abstract class H2MetricsService implements BuildService<BuildServiceParameters.None>, AutoCloseable {
+  private static final Logger LOGGER = Logging.getLogger(H2MetricsService.class);
+
+  private final Map<Integer, H2MetricsSampler> samplers = new ConcurrentHashMap<>();
+
+  /**
+   * Starts sampling the server listening on a tcp port, replacing an earlier sampler of that port.
+   *
+   * @param tcpPort The port the tcp server listens on
+   * @param sampler The sampler of the server
+   */
+  public void start(int tcpPort, H2MetricsSampler sampler) {
+    H2MetricsSampler previous = samplers.put(tcpPort, sampler);
+    if (previous != null) {
+      previous.close();
+    }
+    sampler.start();
+  }
+
+  /**
+   * Suspends sampling the server listening on a tcp port, see {@link H2MetricsSampler#pause()}. Does nothing if the
+   * server is not sampled.
+   *
+   * @param tcpPort The port the tcp server listens on
+   */
+  public void pause(int tcpPort) {
+    H2MetricsSampler sampler = samplers.get(tcpPort);
+    if (sampler != null) {
+      sampler.pause();
+    }
+  }
+
+  /**
+   * Continues sampling the server listening on a tcp port after {@link #pause(int)}. Does nothing if the server is not
+   * sampled.
+   *
+   * @param tcpPort The port the tcp server listens on
+   */
+  public void resume(int tcpPort) {
+    H2MetricsSampler sampler = samplers.get(tcpPort);
+    if (sampler != null) {
+      sampler.resume();
+    }
+  }
+
+  /**
+   * Stops sampling the server listening on a tcp port and writes its report. Does nothing if the server is not sampled.
+   *
+   * @param tcpPort The port the tcp server listens on
+   */
+  public void stop(int tcpPort) {
+    H2MetricsSampler sampler = samplers.remove(tcpPort);
+    if (sampler != null) {
+      try {
+        writeReport(sampler);
+      } catch (IOException e) {
+        throw new GradleException("Could not write the H2 metrics report to " + sampler.getReportDir(), e);
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    for (Integer tcpPort : new ArrayList<>(samplers.keySet())) {
+      H2MetricsSampler sampler = samplers.remove(tcpPort);
+      try {
+        writeReport(sampler);
+      } catch (IOException e) {
+        LOGGER.warn("Could not write the H2 metrics report to {}.", sampler.getReportDir(), e);
+      }
+    }
+  }
+
+  private static void writeReport(H2MetricsSampler sampler) throws IOException {
+    Path html = sampler.finish().write(sampler.getReportDir());
+    LOGGER.lifecycle("H2 metrics report written to {}", html.toUri());
+  }
+}
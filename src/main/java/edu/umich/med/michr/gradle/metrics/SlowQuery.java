@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.metrics;
+
+/**
+ * Execution statistics of one SQL statement, as recorded by H2 in {@code INFORMATION_SCHEMA.QUERY_STATISTICS}.
+ */
+public final class SlowQuery {
+  private final String sql;
+  private final long executionCount;
+  private final double cumulativeMillis;
+  private final double maxMillis;
+
+  /**
+   * @param sql              The SQL statement
+   * @param executionCount   How often the statement ran
+   * @param cumulativeMillis Total execution time of all runs in milliseconds
+   * @param maxMillis        Execution time of the slowest run in milliseconds
+   */
+  public SlowQuery(String sql, long executionCount, double cumulativeMillis, double maxMillis) {
+    this.sql = sql;
+    this.executionCount = executionCount;
+    this.cumulativeMillis = cumulativeMillis;
+    this.maxMillis = maxMillis;
+  }
+
+  public String getSql() {
+    return sql;
+  }
+
+  public long getExecutionCount() {
+    return executionCount;
+  }
+
+  public double getCumulativeMillis() {
+    return cumulativeMillis;
+  }
+
+  public double getMaxMillis() {
+    return maxMillis;
+  }
+
+  /**
+   * @return Average execution time of one run in milliseconds
+   */
+  public double getAverageMillis() {
+    return executionCount == 0 ? 0 : cumulativeMillis / executionCount;
+  }
+}
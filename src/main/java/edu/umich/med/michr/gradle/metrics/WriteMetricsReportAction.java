@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.metrics;
+
+import org.gradle.api.Action;
+import org.gradle.api.Task;
+import org.gradle.api.provider.Provider;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Stop task action writing the metrics report of the server before it is shut down.
+ */
+public class WriteMetricsReportAction implements Action<Task> {
+  private final Provider<H2MetricsService> metricsService;
+  private final Provider<Integer> tcpPort;
+
+  /**
+   * @param metricsService The service keeping the samplers of the build
+   * @param tcpPort        The port the tcp server listens on
+   */
+  public WriteMetricsReportAction(Provider<H2MetricsService> metricsService, Provider<Integer> tcpPort) {
+    this.metricsService = metricsService;
+    this.tcpPort = tcpPort;
+  }
+
+  @Override
+  public void execute(@Nonnull Task task) {
+    metricsService.get().stop(tcpPort.get());
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.server;
+
+import org.gradle.api.file.Directory;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Internal;
+import org.gradle.process.CommandLineArgumentProvider;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * JVM arguments making a forked H2 JVM use an AppCDS archive of the H2 classes. The archive is keyed on the checksum
+ * of the h2 classpath and the JDK running the server, including the full runtime version from its {@code release}
+ * file. When it does not exist yet the server JVM dumps it on exit ({@code -XX:ArchiveClassesAtExit}, JDK 13 and
+ * later), every later launch maps it with {@code -XX:SharedArchiveFile}.
+ * An archive the JVM can not use is ignored with {@code -Xshare:auto}. The checksum is computed once and reused
+ * until a classpath file changes its path, size or modification time, or the JDK changes.
+ */
+public class ClassDataSharingArguments implements CommandLineArgumentProvider {
+  private static final Logger LOGGER = Logging.getLogger(ClassDataSharingArguments.class);
+  private static final int MIN_DYNAMIC_ARCHIVE_JAVA_VERSION = 13;
+
+  private final Provider<Boolean> enabled;
+  private final FileCollection classpath;
+  private final Provider<Directory> archiveDir;
+  private final Provider<Integer> javaVersion;
+  private final Provider<String> javaHome;
+  private final boolean dumpArchive;
+  private List<String> archiveFileStamps;
+  private File archiveFile;
+
+  /**
+   * @param enabled     Whether class data sharing is used
+   * @param classpath   The h2 classpath of the server JVM
+   * @param archiveDir  Directory the archives are cached in
+   * @param javaVersion Feature version of the JDK running the server
+   * @param javaHome    Home of the JDK running the server
+   * @param dumpArchive Whether this JVM creates the archive when it is missing; only the server JVM does, since it
+   *                    loads all the classes later launches need
+   */
+  public ClassDataSharingArguments(Provider<Boolean> enabled, FileCollection classpath, Provider<Directory> archiveDir,
+                                   Provider<Integer> javaVersion, Provider<String> javaHome, boolean dumpArchive) {
+    this.enabled = enabled;
+    this.classpath = classpath;
+    this.archiveDir = archiveDir;
+    this.javaVersion = javaVersion;
+    this.javaHome = javaHome;
+    this.dumpArchive = dumpArchive;
+  }
+
+  /**
+   * @return Whether the archive is used
+   */
+  @Input
+  public boolean isEnabled() {
+    return enabled.get() && javaVersion.get() >= MIN_DYNAMIC_ARCHIVE_JAVA_VERSION;
+  }
+
+  /**
+   * @return The h2 classpath the archive is keyed on
+   */
+  @Classpath
+  public FileCollection getClasspath() {
+    return classpath;
+  }
+
+  /**
+   * @return The archive file for the current classpath and JDK, which may not exist yet
+   */
+  @Internal
+  public synchronized File getArchiveFile() {
+    String release = jdkRelease();
+    List<String> stamps = new ArrayList<>();
+    for (File file : classpath) {
+      stamps.add(file.getAbsolutePath() + '|' + file.length() + '|' + file.lastModified());
+    }
+    stamps.add(javaHome.get());
+    stamps.add(release);
+    //hashing the jars is costly and the arguments are asked for more than once per launch
+    if (!stamps.equals(archiveFileStamps)) {
+      archiveFile = computeArchiveFile(release);
+      archiveFileStamps = stamps;
+    }
+    return archiveFile;
+  }
+
+  @Override
+  public Iterable<String> asArguments() {
+    if (!isEnabled()) {
+      return Collections.emptyList();
+    }
+    File archive = getArchiveFile();
+    if (archive.isFile()) {
+      LOGGER.info("Using the class data sharing archive {}", archive);
+      return Arrays.asList("-Xshare:auto", "-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+    }
+    if (!dumpArchive) {
+      return Collections.emptyList();
+    }
+    LOGGER.info("Creating the class data sharing archive {} when the server exits", archive);
+    return List.of("-XX:ArchiveClassesAtExit=" + archive.getAbsolutePath());
+  }
+
+  /**
+   * Creates the archive directory, so that the JVM can dump a missing archive into it. Called before the JVM starts.
+   */
+  public void createArchiveDir() {
+    if (isEnabled() && dumpArchive) {
+      try {
+        Files.createDirectories(archiveDir.get().getAsFile().toPath());
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  private File computeArchiveFile(String release) {
+    MessageDigest digest = newDigest();
+    for (File file : classpath) {
+      digest.update(file.getName().getBytes(StandardCharsets.UTF_8));
+      try (InputStream in = new DigestInputStream(Files.newInputStream(file.toPath()), digest)) {
+        in.transferTo(OutputStream.nullOutputStream());
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    digest.update(javaHome.get().getBytes(StandardCharsets.UTF_8));
+    //an archive only maps into the exact JDK build that dumped it, which an update in place of the JDK home changes
+    digest.update(release.getBytes(StandardCharsets.UTF_8));
+
+    StringBuilder key = new StringBuilder("h2-jdk").append(javaVersion.get()).append('-');
+    for (byte b : digest.digest()) {
+      key.append(String.format("%02x", b));
+    }
+    return archiveDir.get().file(key.append(".jsa").toString()).getAsFile();
+  }
+
+  /**
+   * @return The {@code release} file of the JDK, which names its full runtime version, or the runtime version of the
+   * current JVM for a JDK without one
+   */
+  private String jdkRelease() {
+    File release = new File(javaHome.get(), "release");
+    try {
+      return release.isFile() ? new String(Files.readAllBytes(release.toPath()), StandardCharsets.UTF_8)
+                              : System.getProperty("java.runtime.version");
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
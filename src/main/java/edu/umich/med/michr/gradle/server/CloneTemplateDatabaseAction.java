@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.server;
+
+import org.gradle.api.Action;
+import org.gradle.api.Task;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.Directory;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.provider.Provider;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Test task action cloning the template database into one database per test fork before the tests start, and writing
+ * the {@link ForkSlotAgent} jar into the directory the forks lock their slots in.
+ */
+public class CloneTemplateDatabaseAction implements Action<Task> {
+  private final Provider<Boolean> enabled;
+  private final FileCollection h2Classpath;
+  private final Provider<String> templateUrl;
+  private final Provider<List<String>> cloneUrls;
+  private final Provider<String> user;
+  private final Provider<String> password;
+  private final Provider<Directory> slotLockDir;
+
+  /**
+   * @param enabled     Whether the test task isolates its forks
+   * @param h2Classpath Classpath of the H2 runtime dependency
+   * @param templateUrl JDBC url of the template database
+   * @param cloneUrls   JDBC urls of the clones, one per fork
+   * @param user        Database user
+   * @param password    Password of the database user
+   * @param slotLockDir Directory of the slot lock files
+   */
+  public CloneTemplateDatabaseAction(Provider<Boolean> enabled, FileCollection h2Classpath,
+                                     Provider<String> templateUrl, Provider<List<String>> cloneUrls,
+                                     Provider<String> user, Provider<String> password,
+                                     Provider<Directory> slotLockDir) {
+    this.enabled = enabled;
+    this.h2Classpath = h2Classpath;
+    this.templateUrl = templateUrl;
+    this.cloneUrls = cloneUrls;
+    this.user = user;
+    this.password = password;
+    this.slotLockDir = slotLockDir;
+  }
+
+  @Override
+  public void execute(@Nonnull Task task) {
+    if (!enabled.get()) {
+      return;
+    }
+    new TemplateDatabaseCloner(new H2JdbcDriver(h2Classpath), user.get(), password.get())
+      .cloneTemplate(templateUrl.get(), cloneUrls.get(), new File(task.getTemporaryDir(), "template.sql.deflate").toPath());
+    try {
+      Files.createDirectories(slotLockDir.get().getAsFile().toPath());
+      writeAgentJar(slotLockDir.get().file(ForkSlotAgent.AGENT_JAR).getAsFile().toPath());
+    } catch (IOException e) {
+      throw new GradleException("Could not write the fork slot agent into " + slotLockDir.get(), e);
+    }
+  }
+
+  /**
+   * The agent is packed into a jar of its own, the plugin classes may not come from a jar with an agent manifest.
+   * @param jar The agent jar
+   */
+  static void writeAgentJar(Path jar) throws IOException {
+    String agentClass = ForkSlotAgent.class.getName();
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().put(new Attributes.Name("Premain-Class"), agentClass);
+    try (InputStream agent = ForkSlotAgent.class.getResourceAsStream(ForkSlotAgent.class.getSimpleName() + ".class");
+         JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+      if (agent == null) {
+        throw new IOException("The class file of " + agentClass + " was not found.");
+      }
+      out.putNextEntry(new JarEntry(agentClass.replace('.', '/') + ".class"));
+      agent.transferTo(out);
+      out.closeEntry();
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.server;
+
+import org.gradle.api.file.Directory;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Internal;
+import org.gradle.process.CommandLineArgumentProvider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Passes the JDBC urls of the per fork database clones to the test JVMs as system properties, together with the
+ * directory of the slot lock files, and starts the test JVMs with the {@link ForkSlotAgent} claiming a clone for them.
+ */
+public class ForkJdbcUrlArguments implements CommandLineArgumentProvider {
+  private final Provider<Boolean> enabled;
+  private final Provider<String> jdbcUrlProperty;
+  private final Provider<List<String>> cloneUrls;
+  private final Provider<Directory> slotLockDir;
+
+  /**
+   * @param enabled         Whether the test task isolates its forks
+   * @param jdbcUrlProperty Prefix of the system properties
+   * @param cloneUrls       JDBC urls of the clones, one per fork slot
+   * @param slotLockDir     Directory of the slot lock files
+   */
+  public ForkJdbcUrlArguments(Provider<Boolean> enabled, Provider<String> jdbcUrlProperty,
+                              Provider<List<String>> cloneUrls, Provider<Directory> slotLockDir) {
+    this.enabled = enabled;
+    this.jdbcUrlProperty = jdbcUrlProperty;
+    this.cloneUrls = cloneUrls;
+    this.slotLockDir = slotLockDir;
+  }
+
+  /**
+   * @return The JDBC urls of the clones, empty if forks are not isolated
+   */
+  @Input
+  public List<String> getCloneUrls() {
+    return enabled.get() ? cloneUrls.get() : Collections.emptyList();
+  }
+
+  /**
+   * @return The prefix of the system properties
+   */
+  @Input
+  public String getJdbcUrlProperty() {
+    return jdbcUrlProperty.get();
+  }
+
+  /**
+   * @return The directory of the slot lock files, not an input since it only depends on the build directory
+   */
+  @Internal
+  public Provider<Directory> getSlotLockDir() {
+    return slotLockDir;
+  }
+
+  @Override
+  public Iterable<String> asArguments() {
+    List<String> urls = getCloneUrls();
+    List<String> arguments = new ArrayList<>();
+    if (!urls.isEmpty()) {
+      arguments.add(String.format("-D%s.forks=%d", getJdbcUrlProperty(), urls.size()));
+      arguments.add(String.format("-D%s.locks=%s", getJdbcUrlProperty(),
+                                  slotLockDir.get().getAsFile().getAbsolutePath()));
+    }
+    for (int slot = 1; slot <= urls.size(); slot++) {
+      arguments.add(String.format("-D%s.%d=%s", getJdbcUrlProperty(), slot, urls.get(slot - 1)));
+    }
+    if (!urls.isEmpty()) {
+      arguments.add(String.format("-javaagent:%s=%s", slotLockDir.get().file(ForkSlotAgent.AGENT_JAR).getAsFile()
+                                                                 .getAbsolutePath(), getJdbcUrlProperty()));
+    }
+    return arguments;
+  }
+}
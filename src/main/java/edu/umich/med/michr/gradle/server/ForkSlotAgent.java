@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Java agent the test JVMs of a task with isolated forks are started with. Before any test runs it claims the first
+ * fork slot whose lock file it can lock, keeps the lock for as long as the JVM runs and publishes the JDBC url of the
+ * slot's clone as the system property {@code <jdbcUrlProperty>}, and the slot as {@code <jdbcUrlProperty>.slot}.
+ * No more forks run at once than there are slots, so a fork always finds one unlocked, and the operating system
+ * releases the lock of a fork that ends. The agent runs in the test JVM, it only depends on the JDK.
+ */
+public final class ForkSlotAgent {
+  /**
+   * Name of the agent jar written into the directory of the slot lock files.
+   */
+  static final String AGENT_JAR = "fork-slot-agent.jar";
+  //keeps the lock, and its channel, reachable for the life of the JVM
+  private static FileLock slotLock;
+
+  private ForkSlotAgent() {
+  }
+
+  /**
+   * @param jdbcUrlProperty Prefix of the system properties passed by {@link ForkJdbcUrlArguments}
+   */
+  public static void premain(String jdbcUrlProperty) {
+    int forks = Integer.getInteger(jdbcUrlProperty + ".forks", 0);
+    String locks = System.getProperty(jdbcUrlProperty + ".locks");
+    for (int slot = 1; slot <= forks; slot++) {
+      if (tryLock(locks, slot)) {
+        System.setProperty(jdbcUrlProperty, System.getProperty(jdbcUrlProperty + "." + slot));
+        System.setProperty(jdbcUrlProperty + ".slot", String.valueOf(slot));
+        return;
+      }
+    }
+    throw new IllegalStateException("All " + forks + " H2 fork slots in " + locks + " are taken.");
+  }
+
+  private static boolean tryLock(String locks, int slot) {
+    try {
+      FileChannel channel = FileChannel.open(Paths.get(locks, "slot" + slot + ".lock"), StandardOpenOption.CREATE,
+                                             StandardOpenOption.WRITE);
+      FileLock lock = channel.tryLock();
+      if (lock == null) {
+        channel.close();
+        return false;
+      }
+      slotLock = lock;
+      return true;
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not lock H2 fork slot " + slot + " in " + locks, e);
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.server;
+
+import org.gradle.api.GradleException;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class loaders for the h2 runtime dependency, kept for the lifetime of the Gradle daemon. The classes of an H2
+ * version are loaded once per daemon and stay isolated from the buildscript classpath, so other plugins bundling a
+ * different H2 version do not interfere.
+ */
+public final class H2ClassLoaders {
+  private static final Map<List<File>, ClassLoader> CLASS_LOADERS = new ConcurrentHashMap<>();
+
+  private H2ClassLoaders() {
+  }
+
+  /**
+   * @param classpath The files of the h2 runtime dependency
+   * @return The class loader for the classpath, created on first use
+   */
+  public static ClassLoader forClasspath(Iterable<File> classpath) {
+    List<File> files = new ArrayList<>();
+    classpath.forEach(files::add);
+    return CLASS_LOADERS.computeIfAbsent(files, key -> new URLClassLoader(toUrls(key),
+                                                                        ClassLoader.getPlatformClassLoader()));
+  }
+
+  private static URL[] toUrls(List<File> classpath) {
+    List<URL> urls = new ArrayList<>();
+    for (File file : classpath) {
+      try {
+        urls.add(file.toURI().toURL());
+      } catch (MalformedURLException e) {
+        throw new GradleException("Invalid h2 classpath entry: " + file, e);
+      }
+    }
+    return urls.toArray(new URL[0]);
+  }
+}
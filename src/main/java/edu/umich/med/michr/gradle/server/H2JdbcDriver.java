@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.server;
+
+import org.gradle.api.GradleException;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.SQLException;
+import java.util.Properties;
+
+/**
+ * JDBC driver for H2 loaded from the h2 runtime dependency of the plugin instead of the build classpath.
+ * The driver lives in an isolated class loader (see {@link H2ClassLoaders}) so the H2 version the plugin talks to is
+ * always the version the server was started with, regardless of which H2 version other plugins put on the buildscript
+ * classpath.
+ */
+public final class H2JdbcDriver {
+  private static final String DRIVER_CLASS = "org.h2.Driver";
+
+  private final Driver driver;
+
+  /**
+   * @param classpath The files of the h2 runtime dependency (e.g. the classpath of the start task)
+   */
+  public H2JdbcDriver(Iterable<File> classpath) {
+    try {
+      this.driver = (Driver) Class.forName(DRIVER_CLASS, true, H2ClassLoaders.forClasspath(classpath))
+                                  .getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException | ClassCastException e) {
+      throw new GradleException("Could not load the H2 JDBC driver from the h2 runtime dependency.", e);
+    }
+  }
+
+  /**
+   * Opens a connection without registering the driver with {@link java.sql.DriverManager}.
+   *
+   * @param url      JDBC url of the database
+   * @param user     Database user
+   * @param password Password of the database user
+   * @return An open connection
+   * @throws SQLException if the driver could not connect to the database
+   */
+  public Connection connect(String url, String user, String password) throws SQLException {
+    Properties info = new Properties();
+    info.setProperty("user", user);
+    info.setProperty("password", password);
+    Connection connection = driver.connect(url, info);
+    if (connection == null) {
+      throw new SQLException("The H2 driver does not accept the url " + url);
+    }
+    return connection;
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.server;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Waits for the readiness of several H2 servers at once. A start task that defers its readiness check hands it to
+ * this service and finishes as soon as its server is launched, so the servers boot concurrently. The aggregate task
+ * then blocks once in {@link #awaitAll()} until every server is ready or has failed.
+ */
+public abstract class H2ReadinessService implements BuildService<BuildServiceParameters.None>, AutoCloseable {
+  private static final Logger LOGGER = Logging.getLogger(H2ReadinessService.class);
+
+  private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "h2-readiness");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final Map<String, CompletableFuture<Void>> pending = new LinkedHashMap<>();
+
+  /**
+   * Starts waiting for the readiness of a server in the background.
+   *
+   * @param server Name of the server used in the failure message, e.g. the path of its start task
+   * @param readinessCheck Blocks until the server is ready and throws if it does not become ready
+   */
+  public synchronized void submit(String server, Runnable readinessCheck) {
+    pending.put(server, CompletableFuture.runAsync(readinessCheck, executor));
+  }
+
+  /**
+   * Blocks until all submitted readiness checks have finished.
+   *
+   * @return Number of servers that became ready
+   * @throws GradleException listing every server that did not become ready
+   */
+  public int awaitAll() {
+    Map<String, CompletableFuture<Void>> checks;
+    synchronized (this) {
+      checks = new LinkedHashMap<>(pending);
+      pending.clear();
+    }
+
+    //the checks run concurrently, so joining them one after another waits as long as the slowest server
+    List<String> failedServers = new ArrayList<>();
+    Throwable firstFailure = null;
+    for (Map.Entry<String, CompletableFuture<Void>> check : checks.entrySet()) {
+      try {
+        check.getValue().join();
+      } catch (CompletionException e) {
+        LOGGER.error("H2 server {} did not become ready: {}", check.getKey(), e.getCause().getMessage());
+        failedServers.add(check.getKey());
+        firstFailure = firstFailure == null ? e.getCause() : firstFailure;
+      }
+    }
+    if (!failedServers.isEmpty()) {
+      throw new GradleException("H2 servers did not become ready: " + String.join(", ", failedServers), firstFailure);
+    }
+    return checks.size();
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+}
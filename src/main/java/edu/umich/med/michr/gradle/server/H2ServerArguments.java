@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.server;
+
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.Input;
+import org.gradle.process.CommandLineArgumentProvider;
+
+import java.util.List;
+
+/**
+ * Passes arguments of the H2 server tool or its JVM that are built from the extension, so they are only computed once
+ * the build script has finished configuring the extension.
+ */
+public class H2ServerArguments implements CommandLineArgumentProvider {
+  private final Provider<List<String>> arguments;
+
+  /**
+   * @param arguments The arguments, one element per argument
+   */
+  public H2ServerArguments(Provider<List<String>> arguments) {
+    this.arguments = arguments;
+  }
+
+  /**
+   * @return The arguments, one element per argument
+   */
+  @Input
+  public List<String> getArguments() {
+    return arguments.get();
+  }
+
+  @Override
+  public Iterable<String> asArguments() {
+    return getArguments();
+  }
+}
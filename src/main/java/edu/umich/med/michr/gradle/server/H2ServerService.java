@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.server;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.SetProperty;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+import org.gradle.tooling.events.FinishEvent;
+import org.gradle.tooling.events.OperationCompletionListener;
+import org.gradle.tooling.events.task.TaskFinishEvent;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * H2 server shared by every project of a build. The server is started when the first task leases it and stopped when
+ * the last task expected to use it has finished, or at the latest when the build ends and Gradle closes the service.
+ * Tasks declare their usage through {@link edu.umich.med.michr.gradle.H2PluginExtension#useSharedServer}.
+ */
+public abstract class H2ServerService implements BuildService<H2ServerService.Params>, OperationCompletionListener,
+                                                 AutoCloseable {
+  private static final Logger LOGGER = Logging.getLogger(H2ServerService.class);
+  private static final String LOCALHOST = "localhost";
+  private static final long STOP_TIMEOUT_SECONDS = 10;
+
+  /**
+   * Settings of the shared server, taken from the extension of the first project registering the service.
+   */
+  public interface Params extends BuildServiceParameters {
+    ConfigurableFileCollection getClasspath();
+    Property<String> getMainClass();
+    Property<Integer> getTcpPort();
+    Property<Integer> getWebPort();
+    Property<Boolean> getEphemeralPorts();
+    Property<String> getTcpPassword();
+    Property<String> getWebAdminPassword();
+    ListProperty<String> getServerFlags();
+    ListProperty<String> getJvmArgs();
+    Property<Duration> getStartupTimeout();
+    RegularFileProperty getLogFile();
+    SetProperty<String> getExpectedUsers();
+  }
+
+  private final Set<String> leases = new HashSet<>();
+  private final Set<String> expectedUsers = new HashSet<>();
+  private Integer tcpPort;
+  private Integer webPort;
+  private Process process;
+
+  /**
+   * The scheduled users are only known once the task graph is ready, they are added to the parameters before the
+   * service is created.
+   */
+  @SuppressWarnings("java:S5993")
+  public H2ServerService() {
+    expectedUsers.addAll(getParameters().getExpectedUsers().get());
+  }
+
+  /**
+   * @return The port the tcp server listens on
+   */
+  public synchronized int getTcpPort() {
+    if (tcpPort == null) {
+      tcpPort = resolvePort(getParameters().getTcpPort().get());
+    }
+    return tcpPort;
+  }
+
+  /**
+   * @return The port the web console listens on
+   */
+  public synchronized int getWebPort() {
+    if (webPort == null) {
+      webPort = resolvePort(getParameters().getWebPort().get());
+    }
+    return webPort;
+  }
+
+  /**
+   * @param database The database name as used in a H2 url, e.g. {@code mem:test} or {@code ./test}
+   * @return The JDBC url of the database on this server
+   */
+  public String getJdbcUrl(String database) {
+    return String.format("jdbc:h2:tcp://%s:%d/%s", LOCALHOST, getTcpPort(), database);
+  }
+
+  /**
+   * Starts the server unless it is already running and records the lease of the given task.
+   *
+   * @param taskPath Path of the task using the server
+   */
+  public synchronized void acquire(String taskPath) {
+    leases.add(taskPath);
+    if (process == null || !process.isAlive()) {
+      start();
+    }
+  }
+
+  /**
+   * Releases the lease of a finished task and stops the server if no other scheduled task needs it.
+   */
+  @Override
+  public synchronized void onFinish(FinishEvent event) {
+    if (!(event instanceof TaskFinishEvent)) {
+      return;
+    }
+    String taskPath = ((TaskFinishEvent) event).getDescriptor().getTaskPath();
+    boolean wasUser = leases.remove(taskPath) | expectedUsers.remove(taskPath);
+    if (wasUser && leases.isEmpty() && expectedUsers.isEmpty()) {
+      stop();
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    stop();
+  }
+
+  private void start() {
+    List<String> command = new ArrayList<>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    command.addAll(getParameters().getJvmArgs().get());
+    command.addAll(Arrays.asList(
+      "-cp", getParameters().getClasspath().getAsPath(),
+      getParameters().getMainClass().get(),
+      "-tcp", "-tcpPort", String.valueOf(getTcpPort()), "-tcpPassword", getParameters().getTcpPassword().get(),
+      "-web", "-webPort", String.valueOf(getWebPort()), "-webAdminPassword", getParameters().getWebAdminPassword().get()));
+    command.addAll(getParameters().getServerFlags().get());
+
+    File logFile = getParameters().getLogFile().get().getAsFile();
+    try {
+      Files.createDirectories(logFile.getParentFile().toPath());
+      //the output goes straight to a file so the server never blocks on a full pipe
+      process = new ProcessBuilder(command).redirectErrorStream(true)
+                                           .redirectOutput(ProcessBuilder.Redirect.appendTo(logFile))
+                                           .start();
+    } catch (IOException e) {
+      throw new GradleException("Could not start the shared H2 database.", e);
+    }
+
+    Process started = process;
+    Duration timeToReady = new ServerReadinessProbe(LOCALHOST, Arrays.asList(getTcpPort(), getWebPort()),
+                                                    getParameters().getStartupTimeout().get(), null,
+                                                    started::isAlive).awaitReady();
+    LOGGER.lifecycle("Shared H2 database ready at tcp://{}:{} in {} ms.", LOCALHOST, getTcpPort(), timeToReady.toMillis());
+  }
+
+  private void stop() {
+    if (process == null) {
+      return;
+    }
+    LOGGER.info("Stopping the shared H2 database at tcp://{}:{}.", LOCALHOST, tcpPort);
+    process.destroy();
+    try {
+      if (!process.waitFor(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        process.destroyForcibly();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      process.destroyForcibly();
+    }
+    process = null;
+  }
+
+  private int resolvePort(int configuredPort) {
+    if (!getParameters().getEphemeralPorts().get()) {
+      return configuredPort;
+    }
+    try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      return socket.getLocalPort();
+    } catch (IOException e) {
+      throw new GradleException("Could not allocate a free port for the shared H2 database.", e);
+    }
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.server;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * Stops an H2 server from within the build: the database is closed with the {@link H2ShutdownMode} first, then the
+ * server is asked to stop over the tcp shutdown protocol through {@code org.h2.tools.Server} of the h2 runtime
+ * dependency. A server still alive after the timeout is killed, but only when its {@link ServerLockFile} confirms the
+ * process is the server.
+ */
+public final class H2ServerShutdown {
+  private static final Logger LOGGER = Logging.getLogger(H2ServerShutdown.class);
+  private static final String LOCALHOST = "localhost";
+  private static final String SERVER_CLASS = "org.h2.tools.Server";
+  private static final long POLL_MILLIS = 50;
+
+  private final Iterable<File> classpath;
+  private final String tcpPassword;
+  private final String jdbcUrl;
+  private final String user;
+  private final String password;
+  private final H2ShutdownMode shutdownMode;
+  private final Duration timeout;
+
+  /**
+   * @param classpath    The files of the h2 runtime dependency
+   * @param tcpPassword  The password of the tcp server
+   * @param jdbcUrl      JDBC url of the database closed before the server stops
+   * @param user         The user the database is closed with
+   * @param password     The password of the database user
+   * @param shutdownMode How the database is closed
+   * @param timeout      How long to wait for the server to stop before killing it
+   */
+  public H2ServerShutdown(Iterable<File> classpath, String tcpPassword, String jdbcUrl, String user, String password,
+                          H2ShutdownMode shutdownMode, Duration timeout) {
+    this.classpath = classpath;
+    this.tcpPassword = tcpPassword;
+    this.jdbcUrl = jdbcUrl;
+    this.user = user;
+    this.password = password;
+    this.shutdownMode = shutdownMode;
+    this.timeout = timeout;
+  }
+
+  /**
+   * Stops the server listening on the port.
+   *
+   * @param tcpPort The port the tcp server listens on
+   * @param lock    The lock file of the server, if any
+   * @return Whether a server was running
+   * @throws GradleException if the server did not stop and can not be killed safely
+   */
+  public boolean stop(int tcpPort, Optional<ServerLockFile> lock) {
+    if (!ServerReadinessProbe.isListening(LOCALHOST, tcpPort) && !lock.map(ServerLockFile::isProcessAlive).orElse(false)) {
+      return false;
+    }
+    shutdownDatabase();
+    Throwable shutdownFailure = shutdownServer(tcpPort);
+    if (!awaitStopped(tcpPort, lock)) {
+      if (!lock.map(ServerLockFile::isProcessAlive).orElse(false)) {
+        throw new GradleException(String.format("H2 database on port %d did not stop within %d s.", tcpPort,
+                                                timeout.getSeconds()), shutdownFailure);
+      }
+      LOGGER.warn("H2 database (pid {}) did not stop within {} s, killing it.", lock.get().getPid(),
+                  timeout.getSeconds());
+      lock.get().kill();
+    }
+    return true;
+  }
+
+  /**
+   * Runs the shutdown statement of the shutdown mode. The database is not created if it does not exist, and a
+   * database that can not be closed this way is still closed by the server stopping.
+   */
+  private void shutdownDatabase() {
+    String statement = shutdownMode.getStatement();
+    if (statement == null) {
+      return;
+    }
+    try (Connection connection = new H2JdbcDriver(classpath).connect(jdbcUrl + ";IFEXISTS=TRUE", user, password);
+         Statement shutdown = connection.createStatement()) {
+      shutdown.execute(statement);
+      LOGGER.info("Ran {} on {}.", statement, jdbcUrl);
+    } catch (SQLException e) {
+      //the connection of the closed database fails to close after SHUTDOWN IMMEDIATELY, which is expected
+      LOGGER.info("Could not run {} on {}: {}", statement, jdbcUrl, e.getMessage());
+    }
+  }
+
+  /**
+   * @return The reason the tcp shutdown request failed, {@code null} if it was sent
+   */
+  private Throwable shutdownServer(int tcpPort) {
+    try {
+      Class<?> serverClass = Class.forName(SERVER_CLASS, true, H2ClassLoaders.forClasspath(classpath));
+      serverClass.getMethod("shutdownTcpServer", String.class, String.class, boolean.class, boolean.class)
+                 .invoke(null, String.format("tcp://%s:%d", LOCALHOST, tcpPort), tcpPassword, false, false);
+      return null;
+    } catch (InvocationTargetException e) {
+      LOGGER.info("Could not send the tcp shutdown request to port {}: {}", tcpPort, e.getCause().getMessage());
+      return e.getCause();
+    } catch (ReflectiveOperationException e) {
+      throw new GradleException("Could not load the H2 server from the h2 runtime dependency.", e);
+    }
+  }
+
+  /**
+   * @return Whether the server stopped listening and its process, if confirmed by the lock, exited within the timeout
+   */
+  private boolean awaitStopped(int tcpPort, Optional<ServerLockFile> lock) {
+    long deadline = System.nanoTime() + timeout.toNanos();
+    while (ServerReadinessProbe.isListening(LOCALHOST, tcpPort)
+           || lock.map(ServerLockFile::isProcessAlive).orElse(false)) {
+      if (System.nanoTime() > deadline) {
+        return false;
+      }
+      try {
+        Thread.sleep(POLL_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return true;
+  }
+}
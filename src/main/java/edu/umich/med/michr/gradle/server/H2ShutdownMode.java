@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.server;
+
+/**
+ * How the database is closed before the H2 server is stopped.
+ */
+public enum H2ShutdownMode {
+  /**
+   * {@code SHUTDOWN}: closes the database after writing all pending changes.
+   */
+  DEFAULT("SHUTDOWN"),
+  /**
+   * {@code SHUTDOWN COMPACT}: also compacts the database files, which makes the stop slower but keeps snapshots small.
+   */
+  COMPACT("SHUTDOWN COMPACT"),
+  /**
+   * {@code SHUTDOWN IMMEDIATELY}: closes the database without writing pending changes, like a crash. Only suitable
+   * for throwaway databases.
+   */
+  IMMEDIATELY("SHUTDOWN IMMEDIATELY"),
+  /**
+   * The database is closed by the server stopping.
+   */
+  NONE(null);
+
+  private final String statement;
+
+  H2ShutdownMode(String statement) {
+    this.statement = statement;
+  }
+
+  /**
+   * @return The SQL statement closing the database, {@code null} for {@link #NONE}
+   */
+  public String getStatement() {
+    return statement;
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.server;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * H2 servers hosted inside the Gradle daemon, keyed by their tcp port. {@code org.h2.tools.Server} is loaded through
+ * {@link H2ClassLoaders} and driven by reflection, so the plugin never links against the H2 version of the build
+ * classpath. A tcp shutdown request sent to such a server (e.g. by {@code -tcpShutdown}) stops its web console too.
+ */
+public final class InProcessH2Servers {
+  private static final Logger LOGGER = Logging.getLogger(InProcessH2Servers.class);
+  private static final String SERVER_CLASS = "org.h2.tools.Server";
+  private static final String SHUTDOWN_HANDLER_CLASS = "org.h2.server.ShutdownHandler";
+  private static final Map<Integer, RunningServer> SERVERS = new ConcurrentHashMap<>();
+
+  private InProcessH2Servers() {
+  }
+
+  /**
+   * Starts the tcp server and web console with the arguments the forked server would get.
+   *
+   * @param classpath The files of the h2 runtime dependency
+   * @param args      Main method arguments of {@code org.h2.tools.Server}
+   * @param tcpPort   The tcp port in the arguments, used as key of the server
+   */
+  public static void start(Iterable<File> classpath, List<String> args, int tcpPort) {
+    if (isRunning(tcpPort)) {
+      throw new GradleException(String.format("An in-process H2 database is already running on port %d.", tcpPort));
+    }
+    try {
+      ClassLoader classLoader = H2ClassLoaders.forClasspath(classpath);
+      Class<?> serverClass = Class.forName(SERVER_CLASS, true, classLoader);
+      Object[] serverArgs = {args.toArray(new String[0])};
+      Object tcpServer = serverClass.getMethod("createTcpServer", String[].class).invoke(null, serverArgs);
+      Object webServer = serverClass.getMethod("createWebServer", String[].class).invoke(null, serverArgs);
+      RunningServer server = new RunningServer(serverClass, tcpServer, webServer);
+
+      Class<?> shutdownHandlerClass = Class.forName(SHUTDOWN_HANDLER_CLASS, true, classLoader);
+      Object shutdownHandler = Proxy.newProxyInstance(classLoader, new Class<?>[]{shutdownHandlerClass},
+                                                      (proxy, method, methodArgs) -> {
+                                                        if (method.getDeclaringClass() == Object.class) {
+                                                          return objectMethod(proxy, method, methodArgs);
+                                                        }
+                                                        stop(tcpPort);
+                                                        return null;
+                                                      });
+      serverClass.getMethod("setShutdownHandler", shutdownHandlerClass).invoke(tcpServer, shutdownHandler);
+
+      server.invoke(tcpServer, "start");
+      server.invoke(webServer, "start");
+      SERVERS.put(tcpPort, server);
+      if (args.contains("-browser")) {
+        serverClass.getMethod("openBrowser", String.class).invoke(null, server.invoke(webServer, "getURL"));
+      }
+      LOGGER.lifecycle("{}", server.invoke(tcpServer, "getStatus"));
+      LOGGER.lifecycle("{}", server.invoke(webServer, "getStatus"));
+    } catch (InvocationTargetException e) {
+      throw new GradleException("Could not start H2 database.", e.getCause());
+    } catch (ReflectiveOperationException e) {
+      throw new GradleException("Could not start H2 database.", e);
+    }
+  }
+
+  private static Object objectMethod(Object proxy, Method method, Object[] args) {
+    switch (method.getName()) {
+      case "equals":
+        return proxy == args[0];
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      default:
+        return "H2 in-process shutdown handler";
+    }
+  }
+
+  /**
+   * @param tcpPort The tcp port of the server
+   * @return Whether an in-process server is running on the port
+   */
+  public static boolean isRunning(int tcpPort) {
+    RunningServer server = SERVERS.get(tcpPort);
+    return server != null && server.isRunning();
+  }
+
+  /**
+   * Stops the tcp server and web console running on the port.
+   *
+   * @param tcpPort The tcp port of the server
+   * @return Whether a server was running on the port
+   */
+  public static boolean stop(int tcpPort) {
+    RunningServer server = SERVERS.remove(tcpPort);
+    if (server == null) {
+      return false;
+    }
+    server.stop();
+    LOGGER.info("Stopped the in-process H2 database on port {}.", tcpPort);
+    return true;
+  }
+
+  private static final class RunningServer {
+    private final Class<?> serverClass;
+    private final Object tcpServer;
+    private final Object webServer;
+
+    private RunningServer(Class<?> serverClass, Object tcpServer, Object webServer) {
+      this.serverClass = serverClass;
+      this.tcpServer = tcpServer;
+      this.webServer = webServer;
+    }
+
+    private boolean isRunning() {
+      try {
+        return (Boolean) serverClass.getMethod("isRunning", boolean.class).invoke(tcpServer, false);
+      } catch (ReflectiveOperationException e) {
+        return false;
+      }
+    }
+
+    private void stop() {
+      try {
+        invoke(webServer, "stop");
+        invoke(tcpServer, "stop");
+      } catch (ReflectiveOperationException e) {
+        throw new GradleException("Could not stop H2 database.", e);
+      }
+    }
+
+    private Object invoke(Object server, String methodName) throws ReflectiveOperationException {
+      Method method = serverClass.getMethod(methodName);
+      return method.invoke(server);
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.server;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Log file bounded in size. When the next line would exceed the maximum size the file is renamed to {@code <name>.1},
+ * earlier backups are shifted to {@code <name>.2} and so on, and the oldest backup is deleted. A non-empty log left by
+ * an earlier run is rolled on open, so every run starts with a fresh file.
+ */
+final class RollingLogFile implements Closeable {
+  private final Path file;
+  private final long maxSize;
+  private final int maxBackups;
+  private OutputStream out;
+  private long size;
+
+  /**
+   * @param file       The log file
+   * @param maxSize    Maximum size of the log file in bytes
+   * @param maxBackups Number of rolled files kept
+   * @throws IOException if the log file could not be opened
+   */
+  RollingLogFile(Path file, long maxSize, int maxBackups) throws IOException {
+    this.file = file;
+    this.maxSize = maxSize;
+    this.maxBackups = maxBackups;
+    Files.createDirectories(file.toAbsolutePath().getParent());
+    if (Files.exists(file) && Files.size(file) > 0) {
+      roll();
+    }
+    open();
+  }
+
+  void writeLine(String line) throws IOException {
+    byte[] bytes = (line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+    if (size > 0 && size + bytes.length > maxSize) {
+      out.close();
+      roll();
+      open();
+    }
+    out.write(bytes);
+    size += bytes.length;
+  }
+
+  void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+
+  private void open() throws IOException {
+    out = new BufferedOutputStream(Files.newOutputStream(file));
+    size = 0;
+  }
+
+  private void roll() throws IOException {
+    if (maxBackups == 0) {
+      Files.delete(file);
+      return;
+    }
+    Files.deleteIfExists(backup(maxBackups));
+    for (int index = maxBackups - 1; index >= 1; index--) {
+      if (Files.exists(backup(index))) {
+        Files.move(backup(index), backup(index + 1), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    Files.move(file, backup(1), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private Path backup(int index) {
+    return file.resolveSibling(file.getFileName() + "." + index);
+  }
+}
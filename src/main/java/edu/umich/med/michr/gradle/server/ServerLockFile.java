@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.server;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+
+/**
+ * Lock file describing the H2 server a start task left running: its process, ports and a fingerprint of the settings
+ * it was started with. A later build reuses the server when the fingerprint still matches and the server is healthy,
+ * restarts it when the settings changed and deletes the lock file when the server is gone.
+ * The lock file survives reboots, so the recorded pid may since have been given to an unrelated process. The process
+ * is only treated as the server, and only ever signalled, when its start instant matches the recorded one or, where
+ * the platform does not report start instants, its command line names the recorded tcp port. Where neither is
+ * available a server answering on the recorded ports is taken to be running, see {@link #isRunning()}.
+ */
+public final class ServerLockFile {
+  /**
+   * Pid recorded when the process of a forked server could not be found.
+   */
+  public static final long UNKNOWN_PID = -1;
+  private static final Logger LOGGER = Logging.getLogger(ServerLockFile.class);
+  private static final String LOCALHOST = "localhost";
+  private static final String PID = "pid";
+  private static final String START_INSTANT = "startInstant";
+  private static final String TCP_PORT = "tcpPort";
+  private static final String WEB_PORT = "webPort";
+  private static final String SERVER_MODE = "serverMode";
+  private static final String FINGERPRINT = "fingerprint";
+  private static final long START_INSTANT_TOLERANCE_MILLIS = 1000;
+
+  private final long pid;
+  private final Instant startInstant;
+  private final int tcpPort;
+  private final int webPort;
+  private final H2ServerMode serverMode;
+  private final String fingerprint;
+
+  /**
+   * @param pid         Process id of the server JVM, the Gradle daemon for an in-process server
+   * @param tcpPort     The port the tcp server listens on
+   * @param webPort     The port the web console listens on
+   * @param serverMode  Whether the server runs forked or in-process
+   * @param fingerprint Fingerprint of the settings the server was started with, see {@link #fingerprint(Iterable)}
+   */
+  public ServerLockFile(long pid, int tcpPort, int webPort, H2ServerMode serverMode, String fingerprint) {
+    this(pid, ProcessHandle.of(pid).flatMap(process -> process.info().startInstant()).orElse(null), tcpPort, webPort,
+         serverMode, fingerprint);
+  }
+
+  /**
+   * @param startInstant When the server process started, {@code null} if the platform does not report it
+   */
+  ServerLockFile(long pid, Instant startInstant, int tcpPort, int webPort, H2ServerMode serverMode,
+                 String fingerprint) {
+    this.pid = pid;
+    this.startInstant = startInstant;
+    this.tcpPort = tcpPort;
+    this.webPort = webPort;
+    this.serverMode = serverMode;
+    this.fingerprint = fingerprint;
+  }
+
+  /**
+   * @param file The lock file
+   * @return The lock, empty if the file does not exist or can not be read
+   */
+  public static Optional<ServerLockFile> read(File file) {
+    if (!file.isFile()) {
+      return Optional.empty();
+    }
+    Properties properties = new Properties();
+    try (InputStream in = Files.newInputStream(file.toPath())) {
+      properties.load(in);
+      String startInstant = properties.getProperty(START_INSTANT);
+      return Optional.of(new ServerLockFile(Long.parseLong(properties.getProperty(PID)),
+                                            startInstant == null ? null : Instant.parse(startInstant),
+                                            Integer.parseInt(properties.getProperty(TCP_PORT)),
+                                            Integer.parseInt(properties.getProperty(WEB_PORT)),
+                                            H2ServerMode.valueOf(properties.getProperty(SERVER_MODE)),
+                                            properties.getProperty(FINGERPRINT, "")));
+    } catch (IOException | RuntimeException e) {
+      LOGGER.debug("Ignoring the unreadable H2 server lock file {}.", file, e);
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * @param file The lock file, its directory is created if missing
+   */
+  public void write(File file) {
+    Properties properties = new Properties();
+    properties.setProperty(PID, String.valueOf(pid));
+    if (startInstant != null) {
+      properties.setProperty(START_INSTANT, startInstant.toString());
+    }
+    properties.setProperty(TCP_PORT, String.valueOf(tcpPort));
+    properties.setProperty(WEB_PORT, String.valueOf(webPort));
+    properties.setProperty(SERVER_MODE, serverMode.name());
+    properties.setProperty(FINGERPRINT, fingerprint);
+    try {
+      Files.createDirectories(file.toPath().toAbsolutePath().getParent());
+      try (OutputStream out = Files.newOutputStream(file.toPath())) {
+        properties.store(out, "H2 server started by the h2 plugin");
+      }
+    } catch (IOException e) {
+      throw new GradleException("Could not write the H2 server lock file " + file, e);
+    }
+  }
+
+  /**
+   * @param file The lock file, which may not exist
+   */
+  public static void delete(File file) {
+    try {
+      Files.deleteIfExists(file.toPath());
+    } catch (IOException e) {
+      throw new GradleException("Could not delete the H2 server lock file " + file, e);
+    }
+  }
+
+  /**
+   * @param settings The settings the server is started with, including the files of its classpath
+   * @return A hash of the settings
+   */
+  public static String fingerprint(Iterable<String> settings) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      for (String setting : settings) {
+        digest.update(setting.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+      }
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest.digest()) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new GradleException("SHA-256 is not available.", e);
+    }
+  }
+
+  public long getPid() {
+    return pid;
+  }
+
+  public int getTcpPort() {
+    return tcpPort;
+  }
+
+  public String getFingerprint() {
+    return fingerprint;
+  }
+
+  /**
+   * When the process can not be confirmed, the pid is unknown, the platform hides what identifies the process or the
+   * server is hosted by another Gradle daemon, a server answering on both ports is taken to be the recorded one, the
+   * caller still compares the fingerprint.
+   * @return Whether the server listens on its ports and its process, where it can be confirmed, is alive
+   */
+  public boolean isRunning() {
+    if (!ServerReadinessProbe.isListening(LOCALHOST, tcpPort)
+        || !ServerReadinessProbe.isListening(LOCALHOST, webPort)) {
+      return false;
+    }
+    return !canConfirmProcess() || isProcessAlive();
+  }
+
+  /**
+   * @return Whether the server process is alive, listening or not. A live process that can not be confirmed to be
+   * the recorded server does not count.
+   */
+  public boolean isProcessAlive() {
+    if (serverMode == H2ServerMode.IN_PROCESS) {
+      return pid == ProcessHandle.current().pid() && InProcessH2Servers.isRunning(tcpPort);
+    }
+    return serverProcess().isPresent();
+  }
+
+  /**
+   * Kills the server without giving it a chance to close its databases. Does nothing if the recorded process is gone
+   * or can not be confirmed to be the server.
+   */
+  public void kill() {
+    if (serverMode == H2ServerMode.IN_PROCESS) {
+      InProcessH2Servers.stop(tcpPort);
+    } else {
+      serverProcess().ifPresent(ProcessHandle::destroyForcibly);
+    }
+  }
+
+  /**
+   * @return Whether {@link #isProcessAlive()} can tell if the recorded server process is alive
+   */
+  private boolean canConfirmProcess() {
+    if (serverMode == H2ServerMode.IN_PROCESS) {
+      return pid == ProcessHandle.current().pid();
+    }
+    if (pid == UNKNOWN_PID) {
+      return false;
+    }
+    return ProcessHandle.of(pid).filter(ProcessHandle::isAlive)
+                        .map(process -> canIdentify(process.info()))
+                        .orElse(true);
+  }
+
+  private boolean canIdentify(ProcessHandle.Info info) {
+    return startInstant != null && info.startInstant().isPresent()
+           || info.arguments().filter(arguments -> arguments.length > 0).isPresent();
+  }
+
+  /**
+   * @return The live process of the forked server, empty if the pid is gone or now belongs to another process
+   */
+  private Optional<ProcessHandle> serverProcess() {
+    Optional<ProcessHandle> process = ProcessHandle.of(pid).filter(ProcessHandle::isAlive);
+    if (process.isPresent() && !isServerProcess(process.get().info())) {
+      LOGGER.info("Process {} is not the H2 server recorded in the lock file, leaving it alone.", pid);
+      return Optional.empty();
+    }
+    return process;
+  }
+
+  private boolean isServerProcess(ProcessHandle.Info info) {
+    Optional<Instant> processStart = info.startInstant();
+    if (startInstant != null && processStart.isPresent()) {
+      //start instants are reported with different precision by different calls on some platforms
+      return Duration.between(startInstant, processStart.get()).abs().toMillis() < START_INSTANT_TOLERANCE_MILLIS;
+    }
+    List<String> arguments = info.arguments().map(Arrays::asList).orElse(Collections.emptyList());
+    int portIndex = arguments.indexOf("-tcpPort");
+    return portIndex >= 0 && portIndex + 1 < arguments.size()
+           && String.valueOf(tcpPort).equals(arguments.get(portIndex + 1));
+  }
+}
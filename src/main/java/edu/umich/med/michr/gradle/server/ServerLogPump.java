@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.server;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.LogLevel;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drains the output of a forked H2 server into a {@link RollingLogFile} on a thread of its own. The streams handed to
+ * the server process never block: lines are queued and dropped, with a note in the log, when the writer falls behind.
+ * Lines at or above the mirror level are also logged to Gradle, so the server output never holds up the database.
+ */
+public final class ServerLogPump implements AutoCloseable {
+  private static final Logger LOGGER = Logging.getLogger(ServerLogPump.class);
+  private static final int QUEUE_CAPACITY = 10_000;
+  private static final int MAX_LINE_LENGTH = 64 * 1024;
+  private static final Line END = new Line(LogLevel.DEBUG, "");
+
+  private final BlockingQueue<Line> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+  private final List<LineOutputStream> streams = new CopyOnWriteArrayList<>();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicBoolean closed = new AtomicBoolean();
+  private final RollingLogFile logFile;
+  private final LogLevel mirrorLevel;
+
+  /**
+   * @param logFile     The log file of the server
+   * @param maxSize     Maximum size of the log file in bytes before it is rolled
+   * @param maxBackups  Number of rolled log files kept
+   * @param mirrorLevel Lowest level of the lines that are also logged to Gradle
+   */
+  public ServerLogPump(File logFile, long maxSize, int maxBackups, LogLevel mirrorLevel) {
+    try {
+      this.logFile = new RollingLogFile(logFile.toPath(), maxSize, maxBackups);
+    } catch (IOException e) {
+      throw new GradleException("Could not open the H2 server log " + logFile, e);
+    }
+    this.mirrorLevel = mirrorLevel;
+    Thread writer = new Thread(this::drain, "h2-server-log");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * @param level The level of the lines written to the stream, e.g. {@link LogLevel#ERROR} for standard error
+   * @return A stream to hand to the server process
+   */
+  public OutputStream stream(LogLevel level) {
+    LineOutputStream stream = new LineOutputStream(level);
+    streams.add(stream);
+    return stream;
+  }
+
+  /**
+   * Writes the remaining lines and closes the log file once the server has ended. Never blocks, neither on the writer
+   * nor on a full queue.
+   */
+  @Override
+  public void close() {
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    streams.forEach(LineOutputStream::close);
+    //the writer may have stopped on a write failure and left the queue full, the oldest lines make room for the end
+    while (!queue.offer(END)) {
+      if (queue.poll() != null) {
+        dropped.incrementAndGet();
+      }
+    }
+  }
+
+  private void drain() {
+    try {
+      Line line;
+      while ((line = queue.take()) != END) {
+        write(line);
+        if (queue.isEmpty()) {
+          reportDropped();
+          logFile.flush();
+        }
+      }
+      reportDropped();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      //the queue fills up and further lines are dropped without blocking the server
+      LOGGER.warn("Could not write the H2 server log, further server output is discarded.", e);
+    } finally {
+      try {
+        logFile.close();
+      } catch (IOException e) {
+        LOGGER.debug("Could not close the H2 server log.", e);
+      }
+    }
+  }
+
+  private void write(Line line) throws IOException {
+    logFile.writeLine(line.text);
+    if (line.level.compareTo(mirrorLevel) >= 0) {
+      LOGGER.log(line.level, line.text);
+    }
+  }
+
+  private void reportDropped() throws IOException {
+    long count = dropped.getAndSet(0);
+    if (count > 0) {
+      write(new Line(LogLevel.WARN, String.format("[h2-plugin] %d lines of server output dropped, the log could not keep up.",
+                                                  count)));
+    }
+  }
+
+  private static final class Line {
+    private final LogLevel level;
+    private final String text;
+
+    private Line(LogLevel level, String text) {
+      this.level = level;
+      this.text = text;
+    }
+  }
+
+  /**
+   * Splits the bytes written by the server process into lines and queues them without blocking.
+   */
+  private final class LineOutputStream extends OutputStream {
+    private final LogLevel level;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    private LineOutputStream(LogLevel level) {
+      this.level = level;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+      if (b == '\n') {
+        emit();
+      } else if (b != '\r') {
+        buffer.write(b);
+        if (buffer.size() >= MAX_LINE_LENGTH) {
+          emit();
+        }
+      }
+    }
+
+    @Override
+    public synchronized void write(byte[] bytes, int offset, int length) {
+      for (int index = offset; index < offset + length; index++) {
+        write(bytes[index]);
+      }
+    }
+
+    @Override
+    public synchronized void close() {
+      if (buffer.size() > 0) {
+        emit();
+      }
+    }
+
+    private void emit() {
+      Line line = new Line(level, buffer.toString(StandardCharsets.UTF_8));
+      buffer.reset();
+      if (!queue.offer(line)) {
+        dropped.incrementAndGet();
+      }
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.server;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Actively polls a freshly launched H2 server until it accepts connections on all of its ports and, optionally,
+ * answers a JDBC query. Polling backs off exponentially and gives up once the startup timeout has elapsed or the
+ * server process is gone, so a server that can not start fails the build quickly instead of hanging it.
+ */
+public class ServerReadinessProbe {
+  private static final Logger LOGGER = Logging.getLogger(ServerReadinessProbe.class);
+  private static final long INITIAL_BACKOFF_MILLIS = 20;
+  private static final long MAX_BACKOFF_MILLIS = 1000;
+  private static final int CONNECT_TIMEOUT_MILLIS = 250;
+
+  /**
+   * A readiness check run against the server once all of its ports accept connections.
+   */
+  @FunctionalInterface
+  public interface JdbcCheck {
+    /**
+     * @throws SQLException if the server can not answer the query yet
+     */
+    void run() throws SQLException;
+  }
+
+  private final String host;
+  private final List<Integer> ports;
+  private final Duration timeout;
+  private final JdbcCheck jdbcCheck;
+  private final BooleanSupplier serverAlive;
+
+  /**
+   * @param host        Host the server listens on
+   * @param ports       Ports that all have to accept connections
+   * @param timeout     Maximum time to wait for the server
+   * @param jdbcCheck   Optional query run once the ports are open, {@code null} to skip it
+   * @param serverAlive Tells whether the server process is still running; polling stops as soon as it is not
+   */
+  public ServerReadinessProbe(String host, List<Integer> ports, Duration timeout, JdbcCheck jdbcCheck,
+                              BooleanSupplier serverAlive) {
+    this.host = host;
+    this.ports = List.copyOf(ports);
+    this.timeout = timeout;
+    this.jdbcCheck = jdbcCheck;
+    this.serverAlive = serverAlive;
+  }
+
+  /**
+   * Blocks until the server is ready.
+   *
+   * @return The measured time it took the server to become ready
+   * @throws GradleException if the server exited or did not become ready within the timeout
+   */
+  public Duration awaitReady() {
+    final long start = System.nanoTime();
+    final long deadline = start + timeout.toNanos();
+    long backoffMillis = INITIAL_BACKOFF_MILLIS;
+    Exception lastFailure = null;
+
+    while (true) {
+      if (!serverAlive.getAsBoolean()) {
+        throw new GradleException("H2 server exited before it became ready.", lastFailure);
+      }
+      try {
+        checkOnce();
+        return Duration.ofNanos(System.nanoTime() - start);
+      } catch (IOException | SQLException e) {
+        LOGGER.debug("H2 server is not ready yet: {}", e.getMessage());
+        lastFailure = e;
+      }
+
+      long remainingMillis = Duration.ofNanos(deadline - System.nanoTime()).toMillis();
+      if (remainingMillis <= 0) {
+        throw new GradleException(String.format("H2 server did not become ready within %d ms.", timeout.toMillis()),
+                                  lastFailure);
+      }
+      sleep(Math.min(backoffMillis, remainingMillis));
+      backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+    }
+  }
+
+  /**
+   * @param host Host to connect to
+   * @param port Port to connect to
+   * @return true if something accepts TCP connections on the given port
+   */
+  public static boolean isListening(String host, int port) {
+    try {
+      connect(host, port);
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private void checkOnce() throws IOException, SQLException {
+    for (int port : ports) {
+      connect(host, port);
+    }
+    if (jdbcCheck != null) {
+      jdbcCheck.run();
+    }
+  }
+
+  private static void connect(String host, int port) throws IOException {
+    try (Socket socket = new Socket()) {
+      socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+    }
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GradleException("Interrupted while waiting for the H2 server to start.", e);
+    }
+  }
+}
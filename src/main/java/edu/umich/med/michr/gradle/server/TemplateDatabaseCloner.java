@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.server;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Clones a template database into several databases on the same server. The template is scripted once to a
+ * compressed file which is then run against every clone in parallel, so it works for file and in-memory storage alike
+ * without touching database files the server has open.
+ */
+public class TemplateDatabaseCloner {
+  private static final Logger LOGGER = Logging.getLogger(TemplateDatabaseCloner.class);
+
+  private final H2JdbcDriver driver;
+  private final String user;
+  private final String password;
+
+  /**
+   * @param driver   Driver connecting to the server
+   * @param user     User of the template and the clones
+   * @param password Password of the user
+   */
+  public TemplateDatabaseCloner(H2JdbcDriver driver, String user, String password) {
+    this.driver = driver;
+    this.user = user;
+    this.password = password;
+  }
+
+  /**
+   * @param templateUrl JDBC url of the template database
+   * @param cloneUrls   JDBC urls of the clones, existing objects in them are dropped
+   * @param scriptFile  File the template is scripted to, the server has to be able to read and write it
+   */
+  public void cloneTemplate(String templateUrl, List<String> cloneUrls, Path scriptFile) {
+    final long start = System.nanoTime();
+    final String script = sqlLiteral(scriptFile.toAbsolutePath().toString());
+    execute(templateUrl, "SCRIPT TO " + script + " COMPRESSION DEFLATE");
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(cloneUrls.size(),
+                                                                     Runtime.getRuntime().availableProcessors()));
+    try {
+      List<Future<?>> clones = new ArrayList<>();
+      for (String cloneUrl : cloneUrls) {
+        clones.add(executor.submit(() -> {
+          execute(cloneUrl, "DROP ALL OBJECTS", "RUNSCRIPT FROM " + script + " COMPRESSION DEFLATE");
+          return null;
+        }));
+      }
+      for (Future<?> clone : clones) {
+        clone.get();
+      }
+    } catch (ExecutionException e) {
+      throw new GradleException("Could not clone the H2 template database.", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GradleException("Interrupted while cloning the H2 template database.", e);
+    } finally {
+      executor.shutdownNow();
+    }
+    LOGGER.lifecycle("Cloned the H2 template database {} times in {} ms.", cloneUrls.size(),
+                     (System.nanoTime() - start) / 1_000_000);
+  }
+
+  private void execute(String url, String... sqlStatements) {
+    try (Connection connection = driver.connect(url, user, password);
+         Statement statement = connection.createStatement()) {
+      for (String sql : sqlStatements) {
+        statement.execute(sql);
+      }
+    } catch (SQLException e) {
+      throw new GradleException("Could not clone the H2 template database at " + url, e);
+    }
+  }
+
+  /**
+   * @param value Plain text
+   * @return The text as a quoted SQL string literal
+   */
+  static String sqlLiteral(String value) {
+    return "'" + value.replace("'", "''") + "'";
+  }
+}
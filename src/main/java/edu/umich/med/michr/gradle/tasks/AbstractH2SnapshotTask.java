@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.tasks;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Base class of the tasks that keep snapshots of migrated H2 databases in a content addressed cache. A snapshot is
+ * keyed on the contents and relative paths of the migration files, the database name and the H2 runtime dependency, so
+ * builds with identical migrations can restore the database files instead of running the migrations again. Only the
+ * files of the database itself are kept, not its trace file or other databases sharing the base directory. The
+ * modification time of a snapshot directory records when it was last saved or restored, snapshots unused for longer
+ * than the retention are deleted.
+ */
+public abstract class AbstractH2SnapshotTask extends DefaultTask {
+  private static final Logger LOGGER = Logging.getLogger(AbstractH2SnapshotTask.class);
+  private static final String DIGEST_ALGORITHM = "SHA-256";
+  private static final String TRACE_FILE_SUFFIX = ".trace.db";
+  private static final String LOCK_FILE_SUFFIX = ".lock.db";
+
+  /**
+   * @return The migration files (e.g. Liquibase change logs or Flyway scripts) the snapshot is derived from
+   */
+  @InputFiles
+  @PathSensitive(PathSensitivity.RELATIVE)
+  public abstract ConfigurableFileCollection getMigrationFiles();
+
+  /**
+   * @return The H2 artifact that wrote the database files
+   */
+  @Input
+  public abstract Property<String> getRuntimeDependency();
+
+  /**
+   * @return The name of the database whose files are kept in the snapshot
+   */
+  @Input
+  public abstract Property<String> getDatabaseName();
+
+  /**
+   * @return The base directory the H2 server keeps its database files in
+   */
+  @Internal
+  public abstract DirectoryProperty getBaseDir();
+
+  /**
+   * @return The tcp port of the server, which has to be stopped before its database files can be touched
+   */
+  @Internal
+  public abstract Property<Integer> getTcpPort();
+
+  /**
+   * @return The directory holding one sub directory per snapshot key
+   */
+  @Internal
+  public abstract DirectoryProperty getSnapshotCacheDir();
+
+  /**
+   * @return How long a snapshot is kept after it was last saved or restored
+   */
+  @Internal
+  public abstract Property<Duration> getSnapshotRetention();
+
+  protected AbstractH2SnapshotTask() {
+    onlyIf(task -> !getMigrationFiles().isEmpty());
+  }
+
+  /**
+   * @return The content hash of the snapshot inputs
+   */
+  @Internal
+  public String getSnapshotKey() {
+    MessageDigest digest = newDigest();
+    digest.update(getRuntimeDependency().get().getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+    digest.update(getDatabaseName().get().getBytes(StandardCharsets.UTF_8));
+
+    Map<String, String> fileHashes = new TreeMap<>();
+    getMigrationFiles().getAsFileTree().visit(details -> {
+      if (!details.isDirectory()) {
+        fileHashes.put(details.getRelativePath().getPathString(), hash(details.getFile().toPath()));
+      }
+    });
+    fileHashes.forEach((path, hash) -> {
+      digest.update(path.getBytes(StandardCharsets.UTF_8));
+      digest.update(hash.getBytes(StandardCharsets.UTF_8));
+    });
+    return toHex(digest.digest());
+  }
+
+  /**
+   * @return The directory of the snapshot matching the current inputs, which may not exist yet
+   */
+  protected Path getSnapshotDir() {
+    return getSnapshotCacheDir().get().getAsFile().toPath().resolve(getSnapshotKey());
+  }
+
+  /**
+   * @return The directory holding the database files, the base directory of the server unless the database name has a
+   * path, failing if the base directory is not configured
+   */
+  protected Path requireDatabaseDir() {
+    if (!getBaseDir().isPresent()) {
+      throw new GradleException("Database snapshots need the h2 baseDir to be configured.");
+    }
+    return getBaseDir().get().getAsFile().toPath().resolve(getDatabaseName().get()).normalize().getParent();
+  }
+
+  /**
+   * The files of the database itself, e.g. {@code test.mv.db}, without its trace and lock files. Other databases in
+   * the same directory, like the per fork clones {@code test_fork1.mv.db}, are left out.
+   *
+   * @param directory The directory to look in
+   * @return The database files directly inside the directory
+   */
+  protected List<Path> listDatabaseFiles(Path directory) {
+    String prefix = Paths.get(getDatabaseName().get()).getFileName() + ".";
+    if (!Files.isDirectory(directory)) {
+      return Collections.emptyList();
+    }
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(Files::isRegularFile)
+                  .filter(file -> {
+                    String name = file.getFileName().toString();
+                    return name.startsWith(prefix) && !name.endsWith(TRACE_FILE_SUFFIX)
+                           && !name.endsWith(LOCK_FILE_SUFFIX);
+                  })
+                  .collect(Collectors.toList());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Copies the database files of one directory to another one. The files are copied rather than hard linked because
+   * H2 updates its files in place, which would corrupt the cached snapshot.
+   *
+   * @param from Source directory
+   * @param to   Target directory, created if missing
+   */
+  protected void copyDatabaseFiles(Path from, Path to) {
+    try {
+      Files.createDirectories(to);
+      for (Path file : listDatabaseFiles(from)) {
+        Files.copy(file, to.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.COPY_ATTRIBUTES);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Records that a snapshot was used, which keeps it from being evicted for another retention period.
+   *
+   * @param snapshotDir The directory of the snapshot
+   */
+  protected void markUsed(Path snapshotDir) {
+    try {
+      Files.setLastModifiedTime(snapshotDir, FileTime.from(Instant.now()));
+    } catch (IOException e) {
+      LOGGER.warn("Could not record the use of the H2 database snapshot {}", snapshotDir, e);
+    }
+  }
+
+  /**
+   * Deletes the snapshots, and temporary directories of crashed saves, that were not used within the retention. A
+   * snapshot is renamed before it is deleted, so a concurrent restore never finds a partially deleted snapshot.
+   *
+   * @param keep The snapshot of the current inputs, which is never deleted
+   */
+  protected void evictExpiredSnapshots(Path keep) {
+    Path cacheDir = getSnapshotCacheDir().get().getAsFile().toPath();
+    if (!Files.isDirectory(cacheDir)) {
+      return;
+    }
+    FileTime expiry = FileTime.from(Instant.now().minus(getSnapshotRetention().get()));
+    List<Path> expired;
+    try (Stream<Path> snapshots = Files.list(cacheDir)) {
+      expired = snapshots.filter(Files::isDirectory)
+                         .filter(snapshot -> !snapshot.equals(keep))
+                         .filter(snapshot -> lastModified(snapshot).compareTo(expiry) < 0)
+                         .collect(Collectors.toList());
+    } catch (IOException e) {
+      LOGGER.warn("Could not list the H2 database snapshots in {}", cacheDir, e);
+      return;
+    }
+    for (Path snapshot : expired) {
+      Path evicted = snapshot.resolveSibling(snapshot.getFileName() + ".evicted-" + UUID.randomUUID());
+      try {
+        Files.move(snapshot, evicted, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        LOGGER.info("H2 database snapshot {} was evicted concurrently.", snapshot.getFileName());
+        continue;
+      }
+      deleteDirectory(evicted);
+      LOGGER.info("Evicted H2 database snapshot {}.", snapshot.getFileName());
+    }
+  }
+
+  /**
+   * Deletes a directory with its contents, logging files that could not be deleted.
+   *
+   * @param directory The directory to delete
+   */
+  protected static void deleteDirectory(Path directory) {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    } catch (IOException e) {
+      LOGGER.warn("Could not delete {}", directory, e);
+    }
+  }
+
+  private static FileTime lastModified(Path path) {
+    try {
+      return Files.getLastModifiedTime(path);
+    } catch (IOException e) {
+      //deleted concurrently, nothing left to evict
+      return FileTime.from(Instant.MAX);
+    }
+  }
+
+  private static String hash(Path file) {
+    MessageDigest digest = newDigest();
+    try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+      in.transferTo(OutputStream.nullOutputStream());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return toHex(digest.digest());
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(DIGEST_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+}
@@ -0,0 +1,443 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.tasks;
+
+import edu.umich.med.michr.gradle.data.CsvReader;
+import edu.umich.med.michr.gradle.data.CsvWriter;
+import edu.umich.med.michr.gradle.data.ExportFormat;
+import edu.umich.med.michr.gradle.data.HexEncoding;
+import edu.umich.med.michr.gradle.data.SqlInsertWriter;
+import edu.umich.med.michr.gradle.server.H2JdbcDriver;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.InvalidUserDataException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.MapProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gradle task that exports the tables of the running H2 database into one file per table, named like the files
+ * {@link LoadH2DataTask} loads (e.g. {@code PUBLIC.PERSON.csv.gz}). Tables are exported in parallel, each streamed
+ * over its own connection with lazy query execution, so memory use is bounded by the fetch size regardless of the
+ * size of the tables. Every table is read in its own transaction, the export is not a consistent snapshot of a
+ * database that changes while it runs. Row counts and throughput per table are written to {@link #getSummaryFile()},
+ * which also tells the next export which files to replace; other files in the output directory are left alone.
+ * SQL files only hold {@code INSERT} statements unless {@link #getIncludeDdl()} is set. Binary values are written to
+ * CSV files as hex digits, see {@link HexEncoding}.
+ */
+public abstract class ExportH2DataTask extends DefaultTask {
+  private static final Logger LOGGER = Logging.getLogger(ExportH2DataTask.class);
+  private static final String GZIP_EXTENSION = ".gz";
+  private static final String DEFAULT_SCHEMA = "PUBLIC";
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final String TABLES_QUERY = "SELECT TABLE_SCHEMA, TABLE_NAME FROM INFORMATION_SCHEMA.TABLES "
+                                             + "WHERE TABLE_TYPE IN ('TABLE', 'BASE TABLE') "
+                                             + "AND TABLE_SCHEMA <> 'INFORMATION_SCHEMA' "
+                                             + "ORDER BY TABLE_SCHEMA, TABLE_NAME";
+  private static final String SUMMARY_FILE_COLUMN = "FILE";
+
+  /**
+   * @return The classpath of the h2 runtime dependency providing the JDBC driver
+   */
+  @Classpath
+  public abstract ConfigurableFileCollection getH2Classpath();
+
+  /**
+   * @return The JDBC url of the database to export
+   */
+  @Input
+  public abstract Property<String> getJdbcUrl();
+
+  /**
+   * @return The database user
+   */
+  @Input
+  public abstract Property<String> getDatabaseUser();
+
+  /**
+   * @return The password of the database user
+   */
+  @Internal
+  public abstract Property<String> getDatabasePassword();
+
+  /**
+   * @return The tables to export, e.g. {@code PERSON} or {@code AUDIT.EVENT}, all tables if empty. Unqualified names
+   * refer to the {@code PUBLIC} schema.
+   */
+  @Input
+  public abstract ListProperty<String> getTables();
+
+  /**
+   * @return Conditions limiting the exported rows by table, e.g. {@code PERSON: "ID < 1000"}
+   */
+  @Input
+  public abstract MapProperty<String, String> getRowFilters();
+
+  /**
+   * @return The format of the exported files
+   */
+  @Input
+  public abstract Property<ExportFormat> getFormat();
+
+  /**
+   * @return Whether the exported files are gzip compressed
+   */
+  @Input
+  public abstract Property<Boolean> getCompress();
+
+  /**
+   * @return Whether SQL files start with the {@code CREATE TABLE} and index statements of their table, so they can be
+   * loaded into an empty database. Foreign keys are left out, so the files load in any order.
+   */
+  @Input
+  public abstract Property<Boolean> getIncludeDdl();
+
+  /**
+   * @return The number of rows the server sends at once
+   */
+  @Input
+  public abstract Property<Integer> getFetchSize();
+
+  /**
+   * @return The number of tables exported at the same time
+   */
+  @Internal
+  public abstract Property<Integer> getParallelism();
+
+  /**
+   * @return The directory the exported files are written to, the files of the previous export are replaced
+   */
+  @OutputDirectory
+  public abstract DirectoryProperty getOutputDir();
+
+  /**
+   * @return The CSV file listing the rows, bytes and time of every exported table
+   */
+  @OutputFile
+  public abstract RegularFileProperty getSummaryFile();
+
+  protected ExportH2DataTask() {
+    getFormat().convention(ExportFormat.CSV);
+    getCompress().convention(true);
+    getIncludeDdl().convention(false);
+    getFetchSize().convention(1000);
+    getParallelism().convention(Runtime.getRuntime().availableProcessors());
+    //the database is not an input of the task, so the export is never up-to-date
+    getOutputs().upToDateWhen(task -> false);
+  }
+
+  /**
+   * This {@link TaskAction} exports the tables
+   */
+  @TaskAction
+  public void export() {
+    if (getParallelism().get() < 1) {
+      throw new InvalidUserDataException(String.format("%s parallelism must be at least 1, but was %d.", getName(),
+                                                       getParallelism().get()));
+    }
+    final long start = System.nanoTime();
+    final H2JdbcDriver driver = new H2JdbcDriver(getH2Classpath());
+    final Path outputDir = getOutputDir().get().getAsFile().toPath();
+
+    List<ExportedTable> tables = selectTables(driver);
+    Map<ExportedTable, String> filters = new LinkedHashMap<>();
+    getRowFilters().get().forEach((table, filter) -> filters.put(findTable(tables, table), filter));
+    deletePreviousExport(outputDir);
+
+    exportTables(driver, tables, filters, outputDir);
+    writeSummary(tables);
+
+    long rows = tables.stream().mapToLong(table -> table.rows).sum();
+    long bytes = tables.stream().mapToLong(table -> table.bytes).sum();
+    long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+    LOGGER.lifecycle("Exported {} rows of {} tables ({} KB) to {} in {} ms ({} rows/s).", rows, tables.size(),
+                     bytes / 1024, outputDir, millis, rows * 1000 / millis);
+  }
+
+  private List<ExportedTable> selectTables(H2JdbcDriver driver) {
+    List<ExportedTable> tables = new ArrayList<>();
+    try (Connection connection = connect(driver);
+         Statement statement = connection.createStatement();
+         ResultSet result = statement.executeQuery(TABLES_QUERY)) {
+      while (result.next()) {
+        tables.add(new ExportedTable(result.getString(1), result.getString(2)));
+      }
+    } catch (SQLException e) {
+      throw new GradleException("Could not list the tables of the H2 database.", e);
+    }
+    if (getTables().get().isEmpty()) {
+      return tables;
+    }
+    List<ExportedTable> selected = new ArrayList<>();
+    for (String table : getTables().get()) {
+      ExportedTable exportedTable = findTable(tables, table);
+      if (!selected.contains(exportedTable)) {
+        selected.add(exportedTable);
+      }
+    }
+    return selected;
+  }
+
+  private static ExportedTable findTable(List<ExportedTable> tables, String name) {
+    String qualifiedName = name.indexOf('.') < 0 ? DEFAULT_SCHEMA + '.' + name : name;
+    return tables.stream()
+                 .filter(table -> table.getQualifiedName().equalsIgnoreCase(qualifiedName))
+                 .findFirst()
+                 .orElseThrow(() -> new GradleException(String.format("Table %s is not exported from the H2 database.",
+                                                                      name)));
+  }
+
+  private void exportTables(H2JdbcDriver driver, List<ExportedTable> tables, Map<ExportedTable, String> filters,
+                            Path outputDir) {
+    if (tables.isEmpty()) {
+      return;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(getParallelism().get(), tables.size()));
+    try {
+      List<Future<?>> exports = new ArrayList<>();
+      for (ExportedTable table : tables) {
+        exports.add(executor.submit(() -> {
+          exportTable(driver, table, filters.get(table), outputDir);
+          return null;
+        }));
+      }
+      for (Future<?> export : exports) {
+        export.get();
+      }
+    } catch (ExecutionException e) {
+      throw new GradleException("Could not export the H2 database.", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GradleException("Interrupted while exporting the H2 database.", e);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void exportTable(H2JdbcDriver driver, ExportedTable table, String filter, Path outputDir)
+    throws SQLException, IOException {
+    final long start = System.nanoTime();
+    final ExportFormat format = getFormat().get();
+    Path file = outputDir.resolve(table.getQualifiedName() + format.getExtension()
+                                  + (getCompress().get() ? GZIP_EXTENSION : ""));
+    String query = "SELECT * FROM " + table.getQuotedName() + (filter == null ? "" : " WHERE " + filter);
+    try (Connection connection = connect(driver)) {
+      connection.setAutoCommit(false);
+      try (Statement settings = connection.createStatement()) {
+        settings.execute("SET LAZY_QUERY_EXECUTION TRUE");
+      }
+      try (Statement select = connection.createStatement()) {
+        select.setFetchSize(getFetchSize().get());
+        try (Writer writer = openWriter(file)) {
+          if (format == ExportFormat.SQL && getIncludeDdl().get()) {
+            writeDdl(connection, writer, table);
+          }
+          try (ResultSet rows = select.executeQuery(query)) {
+            table.rows = format == ExportFormat.CSV ? writeCsv(rows, writer) : writeSql(rows, writer, table);
+          }
+        }
+      }
+      connection.commit();
+    }
+    table.file = file.getFileName().toString();
+    table.bytes = Files.size(file);
+    table.millis = (System.nanoTime() - start) / 1_000_000;
+    LOGGER.info("Exported {} rows of {} in {} ms.", table.rows, table.getQualifiedName(), table.millis);
+  }
+
+  private Writer openWriter(Path file) throws IOException {
+    OutputStream output = Files.newOutputStream(file);
+    if (getCompress().get()) {
+      output = new GZIPOutputStream(output, BUFFER_SIZE);
+    }
+    return new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), BUFFER_SIZE);
+  }
+
+  private static long writeCsv(ResultSet rows, Writer writer) throws SQLException, IOException {
+    ResultSetMetaData metaData = rows.getMetaData();
+    int columnCount = metaData.getColumnCount();
+    CsvWriter csv = new CsvWriter(writer);
+    List<String> fields = new ArrayList<>(columnCount);
+    boolean[] binary = new boolean[columnCount];
+    for (int i = 1; i <= columnCount; i++) {
+      fields.add(metaData.getColumnName(i));
+      binary[i - 1] = HexEncoding.isBinary(metaData.getColumnType(i));
+    }
+    csv.writeRecord(fields);
+    long count = 0;
+    while (rows.next()) {
+      fields.clear();
+      for (int i = 1; i <= columnCount; i++) {
+        fields.add(binary[i - 1] ? HexEncoding.encode(rows.getBytes(i)) : rows.getString(i));
+      }
+      csv.writeRecord(fields);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Writes the statements creating the table and its indexes and constraints, as scripted by H2, without the users,
+   * settings and foreign keys the script also contains.
+   */
+  private static void writeDdl(Connection connection, Writer writer, ExportedTable table)
+    throws SQLException, IOException {
+    try (Statement script = connection.createStatement();
+         ResultSet statements = script.executeQuery("SCRIPT NODATA TABLE " + table.getQuotedName())) {
+      while (statements.next()) {
+        String statement = statements.getString(1);
+        String upperCase = statement.toUpperCase(Locale.ROOT);
+        if ((upperCase.startsWith("CREATE ") || upperCase.startsWith("ALTER TABLE "))
+            && !upperCase.startsWith("CREATE USER ") && !upperCase.startsWith("CREATE ROLE ")
+            && !upperCase.contains(" FOREIGN KEY")) {
+          writer.write(statement);
+          writer.write('\n');
+        }
+      }
+    }
+  }
+
+  private static long writeSql(ResultSet rows, Writer writer, ExportedTable table) throws SQLException, IOException {
+    ResultSetMetaData metaData = rows.getMetaData();
+    int columnCount = metaData.getColumnCount();
+    List<String> columns = new ArrayList<>(columnCount);
+    int[] types = new int[columnCount];
+    for (int i = 1; i <= columnCount; i++) {
+      columns.add(SqlInsertWriter.quoteIdentifier(metaData.getColumnName(i)));
+      types[i - 1] = metaData.getColumnType(i);
+    }
+    SqlInsertWriter sql = new SqlInsertWriter(writer, table.getQuotedName(), columns);
+    List<String> values = new ArrayList<>(columnCount);
+    long count = 0;
+    while (rows.next()) {
+      values.clear();
+      for (int i = 1; i <= columnCount; i++) {
+        values.add(SqlInsertWriter.literal(rows, i, types[i - 1]));
+      }
+      sql.writeRow(values);
+      count++;
+    }
+    return count;
+  }
+
+  private void writeSummary(List<ExportedTable> tables) {
+    Path summaryFile = getSummaryFile().get().getAsFile().toPath();
+    try {
+      Files.createDirectories(summaryFile.getParent());
+      try (CsvWriter summary = new CsvWriter(Files.newBufferedWriter(summaryFile, StandardCharsets.UTF_8))) {
+        summary.writeRecord(Arrays.asList("TABLE", SUMMARY_FILE_COLUMN, "ROWS", "BYTES", "MILLIS", "ROWS_PER_SECOND"));
+        for (ExportedTable table : tables) {
+          summary.writeRecord(Arrays.asList(table.getQualifiedName(), table.file, String.valueOf(table.rows),
+                                            String.valueOf(table.bytes), String.valueOf(table.millis),
+                                            String.valueOf(table.rows * 1000 / Math.max(1, table.millis))));
+        }
+      }
+    } catch (IOException e) {
+      throw new GradleException("Could not write the H2 export summary to " + summaryFile, e);
+    }
+  }
+
+  /**
+   * Deletes the files listed in the summary of the previous export, so tables that are no longer exported or changed
+   * format or compression do not linger next to the new files.
+   */
+  private void deletePreviousExport(Path outputDir) {
+    Path summaryFile = getSummaryFile().get().getAsFile().toPath();
+    if (!Files.isRegularFile(summaryFile)) {
+      return;
+    }
+    try (CsvReader summary = new CsvReader(Files.newBufferedReader(summaryFile, StandardCharsets.UTF_8))) {
+      List<String> header = summary.readRecord();
+      int fileColumn = header == null ? -1 : header.indexOf(SUMMARY_FILE_COLUMN);
+      List<String> record;
+      while (fileColumn >= 0 && (record = summary.readRecord()) != null) {
+        String file = record.size() > fileColumn ? record.get(fileColumn) : null;
+        if (file != null && !file.isEmpty()) {
+          Files.deleteIfExists(outputDir.resolve(Paths.get(file).getFileName().toString()));
+        }
+      }
+    } catch (IOException e) {
+      throw new GradleException("Could not delete the previous H2 export in " + outputDir, e);
+    }
+  }
+
+  private Connection connect(H2JdbcDriver driver) throws SQLException {
+    return driver.connect(getJdbcUrl().get(), getDatabaseUser().get(), getDatabasePassword().get());
+  }
+
+  /**
+   * A table being exported and the statistics of its export.
+   */
+  private static final class ExportedTable {
+    private final String schema;
+    private final String name;
+    private String file;
+    private long rows;
+    private long bytes;
+    private long millis;
+
+    private ExportedTable(String schema, String name) {
+      this.schema = schema;
+      this.name = name;
+    }
+
+    private String getQualifiedName() {
+      return schema + '.' + name;
+    }
+
+    private String getQuotedName() {
+      return SqlInsertWriter.quoteIdentifier(schema) + '.' + SqlInsertWriter.quoteIdentifier(name);
+    }
+  }
+}
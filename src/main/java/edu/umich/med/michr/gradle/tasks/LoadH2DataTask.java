@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.tasks;
+
+import edu.umich.med.michr.gradle.data.CsvReader;
+import edu.umich.med.michr.gradle.data.HexEncoding;
+import edu.umich.med.michr.gradle.data.SqlInsertWriter;
+import edu.umich.med.michr.gradle.server.H2JdbcDriver;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.InvalidUserDataException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.SkipWhenEmpty;
+import org.gradle.api.tasks.TaskAction;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Gradle task that bulk loads data files into the running H2 database.
+ * <ol>
+ *   <li>SQL files run one after the other in file name order with {@code RUNSCRIPT}, which the server streams.</li>
+ *   <li>CSV files are streamed into the table named like the file (e.g. {@code PUBLIC.PERSON.csv}) with batched
+ *   inserts, the first line naming the columns. Table and column names are quoted, so they have to match the case
+ *   they are stored in, as in the files of {@link ExportH2DataTask}. Different tables load in parallel, each over its
+ *   own connection, and files of the same table load one after the other.</li>
+ *   <li>Deferred scripts, e.g. index and constraint creation, run in file name order once all data is loaded.</li>
+ * </ol>
+ * Blank lines in CSV files are skipped, except in files of a single column, where {@link ExportH2DataTask} writes a
+ * {@code NULL} value as an empty line. Binary columns are read as hex digits, see {@link HexEncoding}.
+ * Memory use is bounded by the batch size, regardless of the size of the data files. Files ending in {@code .gz}, e.g.
+ * those written by {@link ExportH2DataTask}, are decompressed while they are read.
+ */
+public abstract class LoadH2DataTask extends DefaultTask {
+  private static final Logger LOGGER = Logging.getLogger(LoadH2DataTask.class);
+  private static final String CSV_EXTENSION = ".csv";
+  private static final String SQL_EXTENSION = ".sql";
+  private static final String GZIP_EXTENSION = ".gz";
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * @return The CSV and SQL files to load
+   */
+  @InputFiles
+  @SkipWhenEmpty
+  @PathSensitive(PathSensitivity.RELATIVE)
+  public abstract ConfigurableFileCollection getDataFiles();
+
+  /**
+   * @return SQL scripts run after all data files are loaded, e.g. to create indexes and constraints
+   */
+  @InputFiles
+  @PathSensitive(PathSensitivity.RELATIVE)
+  public abstract ConfigurableFileCollection getDeferredScripts();
+
+  /**
+   * @return The classpath of the h2 runtime dependency providing the JDBC driver
+   */
+  @Classpath
+  public abstract ConfigurableFileCollection getH2Classpath();
+
+  /**
+   * @return The JDBC url of the database to load the data into
+   */
+  @Input
+  public abstract Property<String> getJdbcUrl();
+
+  /**
+   * @return The database user
+   */
+  @Input
+  public abstract Property<String> getDatabaseUser();
+
+  /**
+   * @return The password of the database user
+   */
+  @Internal
+  public abstract Property<String> getDatabasePassword();
+
+  /**
+   * @return The number of rows inserted and committed at once
+   */
+  @Input
+  public abstract Property<Integer> getBatchSize();
+
+  /**
+   * @return The number of tables loaded at the same time
+   */
+  @Internal
+  public abstract Property<Integer> getParallelism();
+
+  protected LoadH2DataTask() {
+    getBatchSize().convention(1000);
+    getParallelism().convention(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * This {@link TaskAction} loads the data files
+   */
+  @TaskAction
+  public void load() {
+    if (getParallelism().get() < 1) {
+      throw new InvalidUserDataException(String.format("%s parallelism must be at least 1, but was %d.", getName(),
+                                                       getParallelism().get()));
+    }
+    final long start = System.nanoTime();
+    final H2JdbcDriver driver = new H2JdbcDriver(getH2Classpath());
+
+    List<File> sqlFiles = new ArrayList<>();
+    Map<String, List<File>> csvFilesByTable = new TreeMap<>();
+    for (File file : getDataFiles().getFiles()) {
+      String name = uncompressedName(file);
+      if (name.toLowerCase(Locale.ROOT).endsWith(SQL_EXTENSION)) {
+        sqlFiles.add(file);
+      } else if (name.toLowerCase(Locale.ROOT).endsWith(CSV_EXTENSION)) {
+        String table = name.substring(0, name.length() - CSV_EXTENSION.length());
+        csvFilesByTable.computeIfAbsent(table, key -> new ArrayList<>()).add(file);
+      } else {
+        throw new GradleException("Only .csv and .sql data files, optionally gzip compressed, can be loaded: " + file);
+      }
+    }
+    sqlFiles.sort(Comparator.comparing(File::getName));
+    List<File> deferredScripts = new ArrayList<>(getDeferredScripts().getFiles());
+    deferredScripts.sort(Comparator.comparing(File::getName));
+
+    runScripts(driver, sqlFiles);
+    long rows = loadTables(driver, csvFilesByTable);
+    runScripts(driver, deferredScripts);
+
+    long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+    LOGGER.lifecycle("Loaded {} rows into {} tables and ran {} scripts in {} ms ({} rows/s).", rows,
+                     csvFilesByTable.size(), sqlFiles.size() + deferredScripts.size(), millis,
+                     rows * 1000 / millis);
+  }
+
+  private void runScripts(H2JdbcDriver driver, List<File> scripts) {
+    if (scripts.isEmpty()) {
+      return;
+    }
+    try (Connection connection = connect(driver); Statement statement = connection.createStatement()) {
+      for (File script : scripts) {
+        LOGGER.info("Running {}", script);
+        statement.execute("RUNSCRIPT FROM '" + script.getAbsolutePath().replace("'", "''") + "'"
+                          + (isCompressed(script) ? " COMPRESSION GZIP" : "") + " CHARSET 'UTF-8'");
+      }
+    } catch (SQLException e) {
+      throw new GradleException("Could not run the H2 data script.", e);
+    }
+  }
+
+  private long loadTables(H2JdbcDriver driver, Map<String, List<File>> csvFilesByTable) {
+    if (csvFilesByTable.isEmpty()) {
+      return 0;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(getParallelism().get(), csvFilesByTable.size()));
+    try {
+      List<Future<Long>> loads = new ArrayList<>();
+      csvFilesByTable.forEach((table, files) -> loads.add(executor.submit(() -> loadTable(driver, table, files))));
+      long rows = 0;
+      for (Future<Long> load : loads) {
+        rows += load.get();
+      }
+      return rows;
+    } catch (ExecutionException e) {
+      throw new GradleException("Could not load the H2 data files.", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GradleException("Interrupted while loading the H2 data files.", e);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private long loadTable(H2JdbcDriver driver, String table, List<File> files) throws SQLException, IOException {
+    final long start = System.nanoTime();
+    final int batchSize = getBatchSize().get();
+    long rows = 0;
+    try (Connection connection = connect(driver)) {
+      connection.setAutoCommit(false);
+      for (File file : files) {
+        try (CsvReader reader = new CsvReader(openReader(file))) {
+          List<String> columns = reader.readRecord();
+          if (columns == null || columns.isEmpty()) {
+            continue;
+          }
+          boolean[] binary = binaryColumns(connection, table, columns);
+          try (PreparedStatement insert = connection.prepareStatement(insertStatement(table, columns))) {
+            int batched = 0;
+            long fileRow = 0;
+            for (List<String> record = reader.readRecord(); record != null; record = reader.readRecord()) {
+              fileRow++;
+              if (record.isEmpty()) {
+                if (columns.size() > 1) {
+                  continue;
+                }
+                record = Collections.singletonList(null);
+              }
+              if (record.size() != columns.size()) {
+                throw new GradleException(String.format("%s: expected %d fields but got %d in row %d.", file,
+                                                        columns.size(), record.size(), fileRow));
+              }
+              for (int i = 0; i < record.size(); i++) {
+                if (binary[i]) {
+                  insert.setBytes(i + 1, decodeBinary(record.get(i), file, fileRow));
+                } else {
+                  insert.setString(i + 1, record.get(i));
+                }
+              }
+              insert.addBatch();
+              if (++batched == batchSize) {
+                insert.executeBatch();
+                connection.commit();
+                rows += batched;
+                batched = 0;
+              }
+            }
+            insert.executeBatch();
+            connection.commit();
+            rows += batched;
+          }
+        }
+      }
+    }
+    LOGGER.info("Loaded {} rows into {} in {} ms.", rows, table, (System.nanoTime() - start) / 1_000_000);
+    return rows;
+  }
+
+  private static BufferedReader openReader(File file) throws IOException {
+    InputStream input = Files.newInputStream(file.toPath());
+    if (isCompressed(file)) {
+      input = new GZIPInputStream(input, BUFFER_SIZE);
+    }
+    return new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8), BUFFER_SIZE);
+  }
+
+  private static boolean isCompressed(File file) {
+    return file.getName().toLowerCase(Locale.ROOT).endsWith(GZIP_EXTENSION);
+  }
+
+  private static String uncompressedName(File file) {
+    String name = file.getName();
+    return isCompressed(file) ? name.substring(0, name.length() - GZIP_EXTENSION.length()) : name;
+  }
+
+  /**
+   * @param table   Name of the table from the file name, optionally qualified with its schema
+   * @param columns Names of the columns from the header of the file
+   */
+  private static String insertStatement(String table, List<String> columns) {
+    StringBuilder sql = new StringBuilder("INSERT INTO ").append(quoteTable(table)).append(" (");
+    sql.append(String.join(", ", quoteColumns(columns))).append(") VALUES (");
+    sql.append(String.join(", ", Collections.nCopies(columns.size(), "?"))).append(')');
+    return sql.toString();
+  }
+
+  /**
+   * Binary values are read as hex digits, as {@link ExportH2DataTask} writes them. A string set on a binary column
+   * would be stored as its UTF-8 bytes instead.
+   * @return Whether each of the columns holds binary values
+   */
+  private static boolean[] binaryColumns(Connection connection, String table, List<String> columns)
+    throws SQLException {
+    String query = "SELECT " + String.join(", ", quoteColumns(columns)) + " FROM " + quoteTable(table) + " WHERE 1 = 0";
+    try (Statement statement = connection.createStatement(); ResultSet result = statement.executeQuery(query)) {
+      ResultSetMetaData metaData = result.getMetaData();
+      boolean[] binary = new boolean[columns.size()];
+      for (int i = 0; i < binary.length; i++) {
+        binary[i] = HexEncoding.isBinary(metaData.getColumnType(i + 1));
+      }
+      return binary;
+    }
+  }
+
+  private static byte[] decodeBinary(String value, File file, long fileRow) {
+    try {
+      return HexEncoding.decode(value);
+    } catch (IllegalArgumentException e) {
+      throw new GradleException(String.format("%s: %s in row %d.", file, e.getMessage(), fileRow), e);
+    }
+  }
+
+  private static String quoteTable(String table) {
+    int schemaEnd = table.indexOf('.');
+    return schemaEnd < 0 ? SqlInsertWriter.quoteIdentifier(table)
+                         : SqlInsertWriter.quoteIdentifier(table.substring(0, schemaEnd)) + '.'
+                           + SqlInsertWriter.quoteIdentifier(table.substring(schemaEnd + 1));
+  }
+
+  private static List<String> quoteColumns(List<String> columns) {
+    List<String> quotedColumns = new ArrayList<>(columns.size());
+    columns.forEach(column -> quotedColumns.add(SqlInsertWriter.quoteIdentifier(column)));
+    return quotedColumns;
+  }
+
+  private Connection connect(H2JdbcDriver driver) throws SQLException {
+    return driver.connect(getJdbcUrl().get(), getDatabaseUser().get(), getDatabasePassword().get());
+  }
+}
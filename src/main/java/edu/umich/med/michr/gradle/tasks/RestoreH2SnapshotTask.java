@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.tasks;
+
+import edu.umich.med.michr.gradle.server.ServerReadinessProbe;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+/**
+ * Gradle task that restores a snapshot of the migrated database into the base directory of the server before it is
+ * started. Stale files of the database are deleted first, so no leftovers of an earlier database mix with the snapshot.
+ * The restored marker file only exists when a snapshot was restored, which lets migration tasks skip themselves
+ * without reaching into this task at execution time:
+ * <pre>
+ * def snapshotRestored = tasks.named('restoreH2Snapshot').flatMap { it.restoredMarker }
+ * tasks.named('liquibaseUpdate') {
+ *   dependsOn 'restoreH2Snapshot'
+ *   onlyIf { !snapshotRestored.get().asFile.exists() }
+ * }
+ * </pre>
+ */
+public abstract class RestoreH2SnapshotTask extends AbstractH2SnapshotTask {
+  private static final Logger LOGGER = Logging.getLogger(RestoreH2SnapshotTask.class);
+
+  /**
+   * @return The file recording the key of the restored snapshot, deleted when no snapshot was restored
+   */
+  @OutputFile
+  public abstract RegularFileProperty getRestoredMarker();
+
+  protected RestoreH2SnapshotTask() {
+    //the database files are changed by the server and the migrations, the snapshot has to be restored every time
+    getOutputs().upToDateWhen(task -> false);
+  }
+
+  /**
+   * This {@link TaskAction} replaces the database files in the base directory with the snapshot if one exists
+   */
+  @TaskAction
+  public void restore() {
+    Path marker = getRestoredMarker().get().getAsFile().toPath();
+    deleteFile(marker);
+    Path snapshotDir = getSnapshotDir();
+    if (!Files.isDirectory(snapshotDir)) {
+      LOGGER.lifecycle("No H2 database snapshot for the migration files, migrations have to run.");
+      setDidWork(false);
+      return;
+    }
+    if (ServerReadinessProbe.isListening("localhost", getTcpPort().get())) {
+      LOGGER.lifecycle("H2 database snapshot not restored, the server on port {} is running and keeps its database.",
+                       getTcpPort().get());
+      setDidWork(false);
+      return;
+    }
+
+    //marked before the copy, so a concurrent save does not evict the snapshot while it is restored
+    markUsed(snapshotDir);
+    Path databaseDir = requireDatabaseDir();
+    listDatabaseFiles(databaseDir).forEach(RestoreH2SnapshotTask::deleteFile);
+    copyDatabaseFiles(snapshotDir, databaseDir);
+    try {
+      Files.createDirectories(marker.toAbsolutePath().getParent());
+      Files.write(marker, Collections.singletonList(getSnapshotKey()), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new GradleException("Could not write the H2 snapshot marker " + marker, e);
+    }
+    LOGGER.lifecycle("Restored H2 database snapshot {}.", snapshotDir.getFileName());
+  }
+
+  private static void deleteFile(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      throw new GradleException("Could not delete " + file, e);
+    }
+  }
+}
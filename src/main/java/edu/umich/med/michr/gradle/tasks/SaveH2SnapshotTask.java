@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.tasks;
+
+import edu.umich.med.michr.gradle.metrics.H2MetricsService;
+import edu.umich.med.michr.gradle.server.H2JdbcDriver;
+import edu.umich.med.michr.gradle.server.H2ShutdownMode;
+import edu.umich.med.michr.gradle.server.ServerReadinessProbe;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.TaskAction;
+
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+
+/**
+ * Gradle task that stores the files of the freshly migrated database as a snapshot keyed on the migration files. It is
+ * meant to run right after the migrations, before anything else changes the database:
+ * <pre>
+ * tasks.named('liquibaseUpdate') { finalizedBy 'saveH2Snapshot' }
+ * </pre>
+ * A running server keeps serving, only the database is shut down so that its files are complete and consistent; the
+ * next connection opens it again. Metrics sampling of the server is paused until the files are copied. The snapshot is
+ * written to a temporary directory first and moved into place, so concurrent builds never see a partially written
+ * snapshot. Snapshots that were not saved or restored within the retention are deleted afterwards.
+ */
+public abstract class SaveH2SnapshotTask extends AbstractH2SnapshotTask {
+  private static final Logger LOGGER = Logging.getLogger(SaveH2SnapshotTask.class);
+
+  /**
+   * @return The files of the h2 runtime dependency
+   */
+  @Classpath
+  public abstract ConfigurableFileCollection getH2Classpath();
+
+  /**
+   * @return JDBC url of the database shut down before its files are copied
+   */
+  @Internal
+  public abstract Property<String> getJdbcUrl();
+
+  /**
+   * @return The user the database is shut down with
+   */
+  @Internal
+  public abstract Property<String> getDatabaseUser();
+
+  /**
+   * @return The password of the database user
+   */
+  @Internal
+  public abstract Property<String> getDatabasePassword();
+
+  /**
+   * @return {@link H2ShutdownMode#COMPACT} to shrink the database files before they are stored, any other mode closes
+   * the database with a plain {@code SHUTDOWN}
+   */
+  @Internal
+  public abstract Property<H2ShutdownMode> getShutdownMode();
+
+  /**
+   * @return The service sampling the server metrics, sampling is paused while the database files are copied
+   */
+  @Internal
+  public abstract Property<H2MetricsService> getMetricsService();
+
+  /**
+   * This {@link TaskAction} copies the database files into the snapshot cache unless the snapshot already exists, and
+   * evicts expired snapshots
+   */
+  @TaskAction
+  public void save() {
+    Path snapshotDir = getSnapshotDir();
+    if (Files.isDirectory(snapshotDir)) {
+      LOGGER.info("H2 database snapshot {} already exists.", snapshotDir.getFileName());
+      markUsed(snapshotDir);
+      setDidWork(false);
+      return;
+    }
+    Path databaseDir = requireDatabaseDir();
+    //the metrics sampler would open the database again while its files are copied
+    H2MetricsService metricsService = getMetricsService().getOrNull();
+    if (metricsService != null) {
+      metricsService.pause(getTcpPort().get());
+    }
+    try {
+      save(databaseDir, snapshotDir);
+    } finally {
+      if (metricsService != null) {
+        metricsService.resume(getTcpPort().get());
+      }
+    }
+    evictExpiredSnapshots(snapshotDir);
+  }
+
+  private void save(Path databaseDir, Path snapshotDir) {
+    if (ServerReadinessProbe.isListening("localhost", getTcpPort().get())) {
+      shutdownDatabase();
+    }
+    if (listDatabaseFiles(databaseDir).isEmpty()) {
+      LOGGER.warn("H2 database snapshot not saved, there are no files of the database {} in {}.",
+                  getDatabaseName().get(), databaseDir);
+      setDidWork(false);
+      return;
+    }
+
+    Path temporaryDir = snapshotDir.resolveSibling(snapshotDir.getFileName() + ".tmp-" + UUID.randomUUID());
+    copyDatabaseFiles(databaseDir, temporaryDir);
+    try {
+      Files.move(temporaryDir, snapshotDir, StandardCopyOption.ATOMIC_MOVE);
+      LOGGER.lifecycle("Saved H2 database snapshot {}.", snapshotDir.getFileName());
+    } catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+      LOGGER.info("H2 database snapshot {} was saved concurrently.", snapshotDir.getFileName());
+      deleteDirectory(temporaryDir);
+    } catch (IOException e) {
+      deleteDirectory(temporaryDir);
+      throw new GradleException("Could not save the H2 database snapshot.", e);
+    }
+  }
+
+  /**
+   * Closes the database on the running server, writing all pending changes to its files.
+   */
+  private void shutdownDatabase() {
+    H2ShutdownMode mode = getShutdownMode().get() == H2ShutdownMode.COMPACT ? H2ShutdownMode.COMPACT
+                                                                            : H2ShutdownMode.DEFAULT;
+    String url = getJdbcUrl().get() + ";IFEXISTS=TRUE";
+    try (Connection connection = new H2JdbcDriver(getH2Classpath()).connect(url, getDatabaseUser().get(),
+                                                                            getDatabasePassword().get());
+         Statement shutdown = connection.createStatement()) {
+      shutdown.execute(mode.getStatement());
+      LOGGER.info("Ran {} on {} before saving the snapshot.", mode.getStatement(), getJdbcUrl().get());
+    } catch (SQLException e) {
+      throw new GradleException("Could not shut down the H2 database " + getJdbcUrl().get()
+                                + " before saving the snapshot.", e);
+    }
+  }
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.tasks;
+
+import edu.umich.med.michr.gradle.server.H2ReadinessService;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.TaskAction;
+
+import java.time.Duration;
+
+/**
+ * Gradle task that starts all servers declared in {@code h2.servers}. It depends on their start tasks, which only
+ * launch the servers and hand their readiness checks to the {@link H2ReadinessService}, and then waits for all servers
+ * at once. Starting n servers therefore takes about as long as the slowest of them instead of the sum of their
+ * startup times.
+ */
+public abstract class StartAllH2Task extends DefaultTask {
+  private static final Logger LOGGER = Logging.getLogger(StartAllH2Task.class);
+
+  /**
+   * @return The service the start tasks handed their readiness checks to
+   */
+  @Internal
+  public abstract Property<H2ReadinessService> getReadinessService();
+
+  /**
+   * This {@link TaskAction} waits until every launched server is ready
+   */
+  @TaskAction
+  public void awaitServers() {
+    long start = System.nanoTime();
+    int servers = getReadinessService().get().awaitAll();
+    LOGGER.lifecycle("{} H2 databases ready after waiting {} ms.", servers,
+                     Duration.ofNanos(System.nanoTime() - start).toMillis());
+  }
+}
@@ -16,19 +16,42 @@
  */
 package edu.umich.med.michr.gradle.tasks;
 
+import edu.umich.med.michr.gradle.server.ClassDataSharingArguments;
+import edu.umich.med.michr.gradle.server.H2JdbcDriver;
+import edu.umich.med.michr.gradle.server.H2ReadinessService;
+import edu.umich.med.michr.gradle.server.H2ServerMode;
+import edu.umich.med.michr.gradle.server.H2ServerShutdown;
+import edu.umich.med.michr.gradle.server.H2ShutdownMode;
+import edu.umich.med.michr.gradle.server.InProcessH2Servers;
+import edu.umich.med.michr.gradle.server.ServerLockFile;
+import edu.umich.med.michr.gradle.server.ServerLogPump;
+import edu.umich.med.michr.gradle.server.ServerReadinessProbe;
 import org.gradle.api.GradleException;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.logging.LogLevel;
 import org.gradle.api.logging.Logger;
 import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Internal;
 import org.gradle.api.tasks.JavaExec;
+import org.gradle.api.tasks.OutputFile;
 import org.gradle.api.tasks.TaskAction;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
-import java.nio.charset.StandardCharsets;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BooleanSupplier;
 
 /**
  * Gradle task that starts the H2 database.
@@ -36,16 +59,136 @@ import java.util.concurrent.CompletableFuture;
  * Example use case: Dependency Check Analyze plugin of OWASP is bundled with an older version of H2 and if used together with this plugin
  * without overriding the db version in buildscript block of gradle config there's no way to make use of a specific h2 version
  * for this plugin. That results in dependency check analyze use the same version for which the plugin is incompatible.
+ * The task finishes once the server accepts connections on its tcp and web ports, see {@link ServerReadinessProbe}.
+ * With {@link H2ServerMode#IN_PROCESS} the server is hosted inside the Gradle daemon instead, in a class loader built
+ * from the same classpath, which avoids the JVM cold start while still pinning the H2 version.
+ * The output of a forked server is drained into a rolling log file by a {@link ServerLogPump}.
+ * With {@link #getDeferReadiness()} the readiness check is handed to a {@link H2ReadinessService} instead, which lets
+ * {@code startAllH2} wait for several servers booting at the same time.
  */
-public class StartH2Task extends JavaExec {
+public abstract class StartH2Task extends JavaExec {
   private static final Logger LOGGER = Logging.getLogger(StartH2Task.class);
+  private static final String LOCALHOST = "localhost";
+  private static final String READINESS_JDBC_URL = "jdbc:h2:tcp://localhost:%d/mem:h2-plugin-readiness";
 
-  private final PipedInputStream inputStream = new PipedInputStream();
+  /**
+   * @return The port the tcp server is expected to listen on
+   */
+  @Internal
+  public abstract Property<Integer> getTcpPort();
+
+  /**
+   * @return The port the web console is expected to listen on
+   */
+  @Internal
+  public abstract Property<Integer> getWebPort();
+
+  /**
+   * @return How long to wait for the server to become ready
+   */
+  @Internal
+  public abstract Property<Duration> getStartupTimeout();
+
+  /**
+   * @return Whether a {@code SELECT 1} has to succeed before the server is considered ready
+   */
+  @Internal
+  public abstract Property<Boolean> getJdbcReadinessCheck();
+
+  /**
+   * @return Whether the server runs in a forked JVM or inside the Gradle daemon
+   */
+  @Internal
+  public abstract Property<H2ServerMode> getServerMode();
+
+  /**
+   * @return The log file the output of the forked server is written to
+   */
+  @Internal
+  public abstract RegularFileProperty getServerLogFile();
+
+  /**
+   * @return Size in bytes at which the server log is rolled over
+   */
+  @Internal
+  public abstract Property<Long> getServerLogMaxSize();
+
+  /**
+   * @return Number of rolled over server logs kept
+   */
+  @Internal
+  public abstract Property<Integer> getServerLogMaxFiles();
+
+  /**
+   * @return Lowest level of server output also shown in the Gradle log
+   */
+  @Internal
+  public abstract Property<LogLevel> getServerOutputLevel();
+
+  /**
+   * @return The lock file recording the running server, see {@link ServerLockFile}
+   */
+  @OutputFile
+  public abstract RegularFileProperty getServerLockFile();
+
+  /**
+   * @return Whether a server left running by an earlier build with the same settings is reused
+   */
+  @Internal
+  public abstract Property<Boolean> getReuseServer();
+
+  /**
+   * @return Whether the task finishes once the server is launched and leaves the readiness check to
+   * {@link #getReadinessService()}, so that several servers start concurrently
+   */
+  @Internal
+  public abstract Property<Boolean> getDeferReadiness();
+
+  /**
+   * @return The service waiting for the server when the readiness check is deferred
+   */
+  @Internal
+  public abstract Property<H2ReadinessService> getReadinessService();
+
+  /**
+   * @return The password of the tcp server, used to stop a server started with different settings
+   */
+  @Internal
+  public abstract Property<String> getTcpPassword();
+
+  /**
+   * @return JDBC url of the database closed before a server started with different settings is stopped
+   */
+  @Internal
+  public abstract Property<String> getJdbcUrl();
+
+  /**
+   * @return The user the database is closed with
+   */
+  @Internal
+  public abstract Property<String> getDatabaseUser();
 
-  public StartH2Task() throws IOException {
-    //since the JavaExec task will be run async (otherwise H2 thread dies upon gradle finishing JavaExec task in a separate process)
-    //the output of the task (h2 server starting) in standard output has to be captured to figure out if the h2 has started.
-    super.setStandardOutput(new PipedOutputStream(inputStream));
+  /**
+   * @return The password of the database user
+   */
+  @Internal
+  public abstract Property<String> getDatabasePassword();
+
+  /**
+   * @return How the database is closed before a server started with different settings is stopped
+   */
+  @Internal
+  public abstract Property<H2ShutdownMode> getShutdownMode();
+
+  /**
+   * @return How long to wait for a server started with different settings to stop before killing it
+   */
+  @Internal
+  public abstract Property<Duration> getStopTimeout();
+
+  protected StartH2Task() {
+    getDeferReadiness().convention(false);
+    getOutputs().upToDateWhen(task -> getReuseServer().get() && findReusableServer().isPresent());
   }
 
   /**
@@ -55,32 +198,191 @@ public class StartH2Task extends JavaExec {
   public void exec() {
     LOGGER.debug("Trying to start h2 database.");
 
-    LOGGER.info("Using main args: "+this.getArgs());
+    final String fingerprint = serverFingerprint();
+    if (reuseOrStopRunningServer(fingerprint)) {
+      return;
+    }
+    final int tcpPort = getTcpPort().get();
+    final int webPort = getWebPort().get();
+    final H2ServerMode serverMode = getServerMode().get();
+    failIfPortInUse(tcpPort);
+    failIfPortInUse(webPort);
+
+    final List<String> serverArgs = serverArgs();
+    LOGGER.info("Using main args: "+serverArgs);
     LOGGER.info("Using the classpath: "+this.getClasspath().getAsPath()+" to start h2 db, as collected from h2 config block runtimeDependency param");
-    CompletableFuture.runAsync(super::exec).exceptionally(ex -> {
-      LOGGER.error("Failed to start h2 database", ex);
-      throw new GradleException("Could not start H2 database.", ex);
-    });
+    final long start = System.nanoTime();
+    final CompletableFuture<Void> execution;
+    final BooleanSupplier serverAlive;
+    if (serverMode == H2ServerMode.IN_PROCESS) {
+      execution = CompletableFuture.completedFuture(null);
+      InProcessH2Servers.start(getClasspath(), serverArgs, tcpPort);
+      serverAlive = () -> InProcessH2Servers.isRunning(tcpPort);
+    } else {
+      //since the JavaExec task will be run async (otherwise H2 thread dies upon gradle finishing JavaExec task in a separate process)
+      //the output of the server outlives the task, it is drained into the server log for as long as the server runs.
+      ServerLogPump serverLog = new ServerLogPump(getServerLogFile().get().getAsFile(), getServerLogMaxSize().get(),
+                                                  getServerLogMaxFiles().get(), getServerOutputLevel().get());
+      setStandardOutput(serverLog.stream(LogLevel.LIFECYCLE));
+      setErrorOutput(serverLog.stream(LogLevel.ERROR));
+      getJvmArgumentProviders().stream()
+                               .filter(ClassDataSharingArguments.class::isInstance)
+                               .forEach(provider -> ((ClassDataSharingArguments) provider).createArchiveDir());
+      execution = CompletableFuture.runAsync(super::exec);
+      execution.whenComplete((result, failure) -> serverLog.close());
+      serverAlive = () -> !execution.isDone();
+    }
 
-    printH2DbThreadStdOut();
+    H2JdbcDriver driver = getJdbcReadinessCheck().get() ? new H2JdbcDriver(getClasspath()) : null;
+    final ServerReadinessProbe probe = new ServerReadinessProbe(LOCALHOST, Arrays.asList(tcpPort, webPort),
+                                                                getStartupTimeout().get(),
+                                                                driver == null ? null : () -> selectOne(driver, tcpPort),
+                                                                serverAlive);
+    //the lock file is the output of the task, it is written before the task returns even when readiness is deferred.
+    //The pid of a forked server is only looked up once it is ready, the lock file is then rewritten with it.
+    final File lockFile = getServerLockFile().get().getAsFile();
+    final long pid = serverMode == H2ServerMode.IN_PROCESS ? ProcessHandle.current().pid() : ServerLockFile.UNKNOWN_PID;
+    new ServerLockFile(pid, tcpPort, webPort, serverMode, fingerprint).write(lockFile);
+    final String mainClass = getMainClass().get();
+    Runnable readinessCheck = () -> {
+      try {
+        probe.awaitReady();
+      } catch (GradleException e) {
+        rethrowExecutionFailure(execution);
+        throw e;
+      }
+      if (serverMode == H2ServerMode.FORKED) {
+        long serverPid = findForkedServerPid(mainClass, tcpPort);
+        if (serverPid != ServerLockFile.UNKNOWN_PID) {
+          new ServerLockFile(serverPid, tcpPort, webPort, serverMode, fingerprint).write(lockFile);
+        }
+      }
+      LOGGER.lifecycle("H2 database on port {} ready in {} ms ({} server).", tcpPort,
+                       Duration.ofNanos(System.nanoTime() - start).toMillis(),
+                       serverMode.name().toLowerCase(Locale.ROOT).replace('_', '-'));
+    };
+    if (getDeferReadiness().get()) {
+      LOGGER.info("Waiting for the H2 database on port {} in the background.", tcpPort);
+      getReadinessService().get().submit(getPath(), readinessCheck);
+    } else {
+      readinessCheck.run();
+    }
 
-    LOGGER.debug("H2 started with args {}", this.getArgs());
+    LOGGER.debug("H2 started with args {}", serverArgs);
   }
 
-  private void printH2DbThreadStdOut(){
-    try(BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
-      String line;
-      int lineCounter=0;
+  /**
+   * Reuses the server recorded in the lock file if it is healthy and was started with the same settings. Otherwise a
+   * running server is stopped and the lock file of a server that is gone, e.g. crashed, is removed.
+   * @param fingerprint Fingerprint of the current settings
+   * @return Whether the running server is reused
+   */
+  private boolean reuseOrStopRunningServer(String fingerprint) {
+    File lockFile = getServerLockFile().get().getAsFile();
+    Optional<ServerLockFile> lock = ServerLockFile.read(lockFile);
+    if (lock.isPresent() && lock.get().isRunning()) {
+      ServerLockFile runningServer = lock.get();
+      if (getReuseServer().get() && runningServer.getFingerprint().equals(fingerprint)) {
+        LOGGER.lifecycle("Reusing the H2 database (pid {}) started by an earlier build.", runningServer.getPid());
+        return true;
+      }
+      LOGGER.lifecycle("Stopping the H2 database (pid {}) started by an earlier build{}.", runningServer.getPid(),
+                       getReuseServer().get() ? " with different settings" : "");
+      //the database url is built for the configured port, it can only close the database of a server listening there
+      H2ShutdownMode shutdownMode = runningServer.getTcpPort() == getTcpPort().get() ? getShutdownMode().get()
+                                                                                      : H2ShutdownMode.NONE;
+      new H2ServerShutdown(getClasspath(), getTcpPassword().get(), getJdbcUrl().get(), getDatabaseUser().get(),
+                           getDatabasePassword().get(), shutdownMode, getStopTimeout().get())
+        .stop(runningServer.getTcpPort(), lock);
+    } else if (lockFile.exists()) {
+      LOGGER.info("Removing the stale H2 server lock file {}.", lockFile);
+    }
+    ServerLockFile.delete(lockFile);
+    return false;
+  }
 
-      while (lineCounter<2) {
-        line = reader.readLine();
-        if(line.toLowerCase().contains("tcp server") || line.toLowerCase().contains("web console server") ){
-          lineCounter++;
-        }
-        System.out.println(line);
+  private Optional<ServerLockFile> findReusableServer() {
+    return ServerLockFile.read(getServerLockFile().get().getAsFile())
+                         .filter(lock -> lock.getFingerprint().equals(serverFingerprint()))
+                         .filter(ServerLockFile::isRunning);
+  }
+
+  /**
+   * The class data sharing arguments are left out, they change once the archive has been created.
+   * @return Fingerprint of the settings and the H2 artifact the server is started with
+   */
+  private String serverFingerprint() {
+    List<String> settings = new ArrayList<>();
+    settings.add(getMainClass().get());
+    settings.add(getServerMode().get().name());
+    settings.addAll(serverArgs());
+    if (getJvmArgs() != null) {
+      settings.addAll(getJvmArgs());
+    }
+    getJvmArgumentProviders().stream()
+                             .filter(provider -> !(provider instanceof ClassDataSharingArguments))
+                             .forEach(provider -> provider.asArguments().forEach(settings::add));
+    getClasspath().forEach(file -> settings.add(file.getAbsolutePath()));
+    return ServerLockFile.fingerprint(settings);
+  }
+
+  /**
+   * Finds the forked server among the processes started by the Gradle daemon by its main class and tcp port. It is
+   * only called once the server is ready, so the process exists and is looked up a single time. The search stops at
+   * the first process whose arguments the platform hides, e.g. on Windows, as the server could not be told apart.
+   * @return The pid of the server, {@link ServerLockFile#UNKNOWN_PID} if it can not be identified
+   */
+  private static long findForkedServerPid(String mainClass, int tcpPort) {
+    String port = String.valueOf(tcpPort);
+    Iterator<ProcessHandle> processes = ProcessHandle.current().descendants().iterator();
+    while (processes.hasNext()) {
+      ProcessHandle process = processes.next();
+      List<String> arguments = process.info().arguments().map(Arrays::asList).orElse(Collections.emptyList());
+      if (arguments.isEmpty()) {
+        LOGGER.info("The arguments of process {} are not available, the pid of the H2 server is not recorded.",
+                    process.pid());
+        return ServerLockFile.UNKNOWN_PID;
+      }
+      int portIndex = arguments.indexOf("-tcpPort");
+      if (arguments.contains(mainClass) && portIndex >= 0 && portIndex + 1 < arguments.size()
+          && port.equals(arguments.get(portIndex + 1))) {
+        return process.pid();
+      }
+    }
+    return ServerLockFile.UNKNOWN_PID;
+  }
+
+  /**
+   * @return The main method arguments, including those of the argument providers
+   */
+  private List<String> serverArgs() {
+    List<String> args = new ArrayList<>(getArgs());
+    getArgumentProviders().forEach(provider -> provider.asArguments().forEach(args::add));
+    return args;
+  }
+
+  private static void failIfPortInUse(int port) {
+    if (ServerReadinessProbe.isListening(LOCALHOST, port)) {
+      throw new GradleException(String.format("Could not start H2 database, port %d is already in use.", port));
+    }
+  }
+
+  private static void selectOne(H2JdbcDriver driver, int tcpPort) throws SQLException {
+    try (Connection connection = driver.connect(String.format(READINESS_JDBC_URL, tcpPort), "sa", "");
+         Statement statement = connection.createStatement()) {
+      statement.execute("SELECT 1");
+    }
+  }
+
+  private static void rethrowExecutionFailure(CompletableFuture<Void> execution) {
+    if (execution.isCompletedExceptionally()) {
+      try {
+        execution.get();
+      } catch (ExecutionException e) {
+        throw new GradleException("Could not start H2 database.", e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
       }
-    } catch (IOException e) {
-      throw new GradleException("Could not start H2 database.", e);
     }
   }
 }
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.tasks;
+
+import edu.umich.med.michr.gradle.server.H2ServerShutdown;
+import edu.umich.med.michr.gradle.server.H2ShutdownMode;
+import edu.umich.med.michr.gradle.server.ServerLockFile;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.TaskAction;
+
+import java.io.File;
+import java.time.Duration;
+
+/**
+ * Gradle task that stops the H2 database from within the build instead of forking a JVM for {@code -tcpShutdown}, see
+ * {@link H2ServerShutdown}. The lock file is deleted afterwards, also when it only recorded a server that is gone.
+ */
+public abstract class StopH2Task extends DefaultTask {
+  private static final Logger LOGGER = Logging.getLogger(StopH2Task.class);
+
+  /**
+   * @return The files of the h2 runtime dependency
+   */
+  @Classpath
+  public abstract ConfigurableFileCollection getH2Classpath();
+
+  /**
+   * @return The port the tcp server listens on
+   */
+  @Internal
+  public abstract Property<Integer> getTcpPort();
+
+  /**
+   * @return The password of the tcp server
+   */
+  @Internal
+  public abstract Property<String> getTcpPassword();
+
+  /**
+   * @return JDBC url of the database closed before the server stops
+   */
+  @Internal
+  public abstract Property<String> getJdbcUrl();
+
+  /**
+   * @return The user the database is closed with
+   */
+  @Internal
+  public abstract Property<String> getDatabaseUser();
+
+  /**
+   * @return The password of the database user
+   */
+  @Internal
+  public abstract Property<String> getDatabasePassword();
+
+  /**
+   * @return How the database is closed before the server stops
+   */
+  @Internal
+  public abstract Property<H2ShutdownMode> getShutdownMode();
+
+  /**
+   * @return How long to wait for the server to stop before killing it
+   */
+  @Internal
+  public abstract Property<Duration> getStopTimeout();
+
+  /**
+   * @return The lock file recording the running server, deleted once the server has stopped
+   */
+  @Internal
+  public abstract RegularFileProperty getServerLockFile();
+
+  /**
+   * This {@link TaskAction} stops the H2 Database
+   */
+  @TaskAction
+  public void stop() {
+    final int tcpPort = getTcpPort().get();
+    final File lockFile = getServerLockFile().get().getAsFile();
+    final long start = System.nanoTime();
+    H2ServerShutdown shutdown = new H2ServerShutdown(getH2Classpath(), getTcpPassword().get(), getJdbcUrl().get(),
+                                                     getDatabaseUser().get(), getDatabasePassword().get(),
+                                                     getShutdownMode().get(), getStopTimeout().get());
+    if (shutdown.stop(tcpPort, ServerLockFile.read(lockFile))) {
+      LOGGER.lifecycle("H2 database stopped in {} ms.", Duration.ofNanos(System.nanoTime() - start).toMillis());
+    } else {
+      LOGGER.lifecycle("No H2 database running on port {}.", tcpPort);
+      setDidWork(false);
+    }
+    ServerLockFile.delete(lockFile);
+  }
+}
@@ -16,7 +16,15 @@
  */
 package edu.umich.med.michr.gradle;
 
+import edu.umich.med.michr.gradle.data.ExportFormat;
+import edu.umich.med.michr.gradle.server.H2ServerMode;
+import edu.umich.med.michr.gradle.server.H2ShutdownMode;
+import edu.umich.med.michr.gradle.tasks.ExportH2DataTask;
+import edu.umich.med.michr.gradle.tasks.RestoreH2SnapshotTask;
+import edu.umich.med.michr.gradle.tasks.SaveH2SnapshotTask;
 import edu.umich.med.michr.gradle.tasks.StartH2Task;
+import edu.umich.med.michr.gradle.tasks.StopH2Task;
+import org.gradle.api.InvalidUserDataException;
 import org.gradle.api.Project;
 import org.gradle.api.Task;
 import org.gradle.api.tasks.JavaExec;
@@ -33,13 +41,24 @@ import org.junit.jupiter.api.io.TempDir;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.ServerSocket;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import static edu.umich.med.michr.gradle.H2PluginExtension.DEFAULT_STARTUP_TIMEOUT;
+import static edu.umich.med.michr.gradle.H2PluginExtension.DEFAULT_STOP_TIMEOUT;
 import static edu.umich.med.michr.gradle.H2PluginExtension.MAIN_CLASS;
 import static edu.umich.med.michr.gradle.H2PluginExtension.RUNTIME_DEPENDENCY;
 import static org.gradle.testkit.runner.TaskOutcome.SUCCESS;
@@ -72,10 +91,10 @@ class H2PluginTest {
 
     TaskCollection<Task> h2Tasks = project.getTasks().matching(t -> Objects.equals(t.getGroup(),
                                                                                    H2Plugin.H2_CONFIGURATION_NAME));
-    assertEquals(2,h2Tasks.size(),"The plugin should have registered start/stop tasks under the same group name.");
+    assertEquals(8,h2Tasks.size(),"The plugin should have registered start/stop, snapshot, data loading and export, and aggregate server tasks under the same group name.");
 
     StartH2Task startH2Task = (StartH2Task)project.getTasks().getByName("startH2");
-    JavaExec stopH2Task = (JavaExec)project.getTasks().getByName("stopH2");
+    StopH2Task stopH2Task = (StopH2Task)project.getTasks().getByName("stopH2");
     H2PluginExtension defaultPluginConfig = (H2PluginExtension) project.getExtensions().getByName("h2");
 
     assertEquals(MAIN_CLASS, defaultPluginConfig.getMainClass().get(), "");
@@ -88,8 +107,213 @@ class H2PluginTest {
     assertEquals("admin",defaultPluginConfig.getWebAdminPassword().get(),"The default web console admin password should be set.");
     assertEquals(Constants.DEFAULT_TCP_PORT, defaultPluginConfig.getTcpPort().get(), "The default port for tcp server should be the same default port specified by h2 lib.");
     assertEquals(Constants.DEFAULT_HTTP_PORT,defaultPluginConfig.getWebPort().get(),"The default port for web console server should be the same default port specified by h2 lib.");
-    assertEquals(Arrays.asList("-tcp","-tcpPort","9092","-tcpPassword","admin","-web","-webPort","8082","-webAdminPassword","admin","-ifNotExists","-tcpAllowOthers","-webAllowOthers"), startH2Task.getArgs(), "The main method arguments should be correctly build to be passed to the JavaExec task for running executable h2 jar to start the h2 db");
-    assertEquals(Arrays.asList("-tcpShutdown","tcp://localhost:9092","-tcpPassword","admin"),stopH2Task.getArgs(),"The main method arguments should be correctly build to be passed to the JavaExec task for running executable h2 jar to stop the h2 db");
+    assertEquals(DEFAULT_STARTUP_TIMEOUT, startH2Task.getStartupTimeout().get(), "The start task should wait for the server as long as the default startup timeout.");
+    assertFalse(startH2Task.getJdbcReadinessCheck().get(), "Readiness should be decided by probing the ports unless the jdbc check is enabled.");
+    assertEquals(H2ServerMode.FORKED, startH2Task.getServerMode().get(), "The server should run in a forked JVM by default.");
+    assertTrue(defaultPluginConfig.getClassDataSharing().get(), "The forked server JVM should use a class data sharing archive by default.");
+    assertFalse(defaultPluginConfig.getMetrics().get(), "Server side metrics should only be sampled when enabled.");
+    assertTrue(defaultPluginConfig.getReuseServer().get(), "A server left running with the same settings should be reused by default.");
+    assertEquals(new File(project.getBuildDir(), "h2/server.lock"), startH2Task.getServerLockFile().get().getAsFile(), "The lock file of the server should be kept in the build directory.");
+    assertEquals(Arrays.asList("-tcp","-tcpPort","9092","-tcpPassword","admin","-web","-webPort","8082","-webAdminPassword","admin","-ifNotExists","-tcpAllowOthers","-webAllowOthers"), mainArgs(startH2Task), "The main method arguments should be correctly build to be passed to the JavaExec task for running executable h2 jar to start the h2 db");
+    assertEquals(9092, stopH2Task.getTcpPort().get(), "The stop task should shut down the server on the configured tcp port.");
+    assertEquals("admin", stopH2Task.getTcpPassword().get(), "The stop task should authenticate with the tcp password.");
+    assertEquals(H2ShutdownMode.DEFAULT, stopH2Task.getShutdownMode().get(), "The database should be closed with a plain SHUTDOWN by default.");
+    assertEquals(DEFAULT_STOP_TIMEOUT, stopH2Task.getStopTimeout().get(), "The server should get the default stop timeout to stop before it is killed.");
+    assertEquals(startH2Task.getServerLockFile().get(), stopH2Task.getServerLockFile().get(), "The stop task should remove the lock file written by the start task.");
+  }
+
+  @Test
+  @DisplayName("Plugin wires the tasks lazily with one H2 classpath configuration.")
+  void tasks_wired_lazily(){
+    Project project = ProjectBuilder.builder().build();
+    project.getPluginManager().apply(PLUGIN_ID);
+    StartH2Task startH2Task = (StartH2Task)project.getTasks().getByName("startH2");
+    StopH2Task stopH2Task = (StopH2Task)project.getTasks().getByName("stopH2");
+
+    H2PluginExtension pluginConfig = (H2PluginExtension) project.getExtensions().getByName("h2");
+    pluginConfig.getTcpPort().set(9500);
+
+    assertEquals(9500, stopH2Task.getTcpPort().get(), "Settings changed after the tasks are configured should still be used.");
+    assertEquals("jdbc:h2:tcp://localhost:9500/./test", stopH2Task.getJdbcUrl().get(), "The stop task should close the database on the tcp port set after it was configured.");
+    assertTrue(mainArgs(startH2Task).contains("9500"), "The start task should use the tcp port set after it was configured.");
+    assertSame(project.getConfigurations().getByName(H2Plugin.H2_CONFIGURATION_NAME), pluginConfig.buildClassPathConfig(project), "The tasks should share the h2 configuration.");
+  }
+
+  @Test
+  @DisplayName("Declared servers get their own start and stop tasks, started together by startAllH2.")
+  void declared_servers_get_tasks(){
+    Project project = ProjectBuilder.builder().build();
+    project.getPluginManager().apply(PLUGIN_ID);
+    H2PluginExtension pluginConfig = (H2PluginExtension) project.getExtensions().getByName("h2");
+    pluginConfig.getTcpPassword().set("secret");
+    pluginConfig.getServers().create("audit", server -> {
+      server.getTcpPort().set(9093);
+      server.getWebPort().set(8083);
+    });
+
+    StartH2Task startAuditH2 = (StartH2Task)project.getTasks().getByName("startAuditH2");
+    StopH2Task stopAuditH2 = (StopH2Task)project.getTasks().getByName("stopAuditH2");
+    H2ServerSpec audit = pluginConfig.getServers().getByName("audit");
+
+    assertTrue(mainArgs(startAuditH2).containsAll(Arrays.asList("-tcpPort","9093","-webPort","8083","-tcpPassword","secret")), "The server should use its own ports and inherit the other settings of the h2 extension.");
+    assertEquals(9093, stopAuditH2.getTcpPort().get(), "The stop task should shut down the declared server.");
+    assertEquals(startAuditH2.getServerLockFile().get(), stopAuditH2.getServerLockFile().get(), "The stop task should remove the lock file of the declared server.");
+    assertEquals("jdbc:h2:tcp://localhost:9093/./audit", audit.buildJdbcUrl(), "The database of a declared server should be named after the server.");
+    assertEquals(new File(project.getBuildDir(), "h2/audit/server.lock"), startAuditH2.getServerLockFile().get().getAsFile(), "Every declared server should have its own lock file.");
+    assertNotNull(project.getConfigurations().findByName("h2Audit"), "Every declared server should resolve its H2 runtime from its own configuration.");
+    assertTrue(project.getTasks().getByName("startAllH2").getTaskDependencies().getDependencies(null).contains(startAuditH2), "startAllH2 should start the declared server.");
+    assertFalse(startAuditH2.getDeferReadiness().get(), "A start task run on its own should wait for its server.");
+
+    pluginConfig.getServers().create("reports");
+    assertThrows(InvalidUserDataException.class, pluginConfig::validate, "A declared server without ports should be rejected.");
+  }
+
+  @Test
+  @DisplayName("The export task streams the configured database into compressed CSV files by default.")
+  void exportH2_defaults(){
+    Project project = ProjectBuilder.builder().build();
+    project.getPluginManager().apply(PLUGIN_ID);
+    ExportH2DataTask exportH2Task = (ExportH2DataTask)project.getTasks().getByName("exportH2");
+
+    assertEquals("jdbc:h2:tcp://localhost:9092/./test", exportH2Task.getJdbcUrl().get(), "The configured database should be exported.");
+    assertEquals(ExportFormat.CSV, exportH2Task.getFormat().get(), "Tables should be exported as CSV files loadH2Data can read by default.");
+    assertTrue(exportH2Task.getCompress().get(), "The exported files should be gzip compressed by default.");
+    assertTrue(exportH2Task.getTables().get().isEmpty(), "All tables should be exported by default.");
+    assertEquals(new File(project.getBuildDir(), "h2/export"), exportH2Task.getOutputDir().get().getAsFile(), "The files should be exported into the build directory.");
+  }
+
+  @Test
+  @DisplayName("Tasks can lease the H2 server shared by the build.")
+  void useSharedServer_registers_task(){
+    Project project = ProjectBuilder.builder().build();
+    project.getPluginManager().apply(PLUGIN_ID);
+    H2PluginExtension pluginConfig = (H2PluginExtension) project.getExtensions().getByName("h2");
+    Task integrationTest = project.getTasks().create("integrationTest");
+
+    pluginConfig.useSharedServer(integrationTest);
+
+    assertTrue(pluginConfig.getSharedServer().isPresent(), "The shared server should be registered as a build service.");
+    assertTrue(pluginConfig.getSharedServerUsers().contains(integrationTest.getPath()), "The task should be expected to use the shared server.");
+    assertFalse(pluginConfig.getEphemeralPorts().get(), "The shared server should listen on the configured ports by default.");
+  }
+
+  @Test
+  @DisplayName("Database snapshots are keyed on the contents of the migration files.")
+  void snapshotKey_follows_migration_files(@TempDir Path migrationsDirectory) throws IOException {
+    Project project = ProjectBuilder.builder().build();
+    project.getPluginManager().apply(PLUGIN_ID);
+    H2PluginExtension pluginConfig = (H2PluginExtension) project.getExtensions().getByName("h2");
+    Path changeLog = Files.write(migrationsDirectory.resolve("changelog.sql"), "CREATE TABLE A(ID INT);".getBytes());
+    pluginConfig.getMigrationFiles().from(migrationsDirectory);
+
+    RestoreH2SnapshotTask restoreTask = (RestoreH2SnapshotTask) project.getTasks().getByName("restoreH2Snapshot");
+    String initialKey = restoreTask.getSnapshotKey();
+    assertEquals(initialKey, restoreTask.getSnapshotKey(), "The snapshot key should be stable for unchanged migrations.");
+
+    Files.write(changeLog, "CREATE TABLE B(ID INT);".getBytes());
+    assertNotEquals(initialKey, restoreTask.getSnapshotKey(), "Changing a migration should change the snapshot key.");
+  }
+
+  @Test
+  @DisplayName("Snapshots hold only the files of the database, restoring one replaces its stale files and marks the restore, and unused ones are evicted.")
+  void snapshot_save_and_restore(@TempDir Path workDirectory) throws IOException {
+    Project project = ProjectBuilder.builder().withProjectDir(workDirectory.resolve("project").toFile()).build();
+    project.getPluginManager().apply(PLUGIN_ID);
+    H2PluginExtension pluginConfig = (H2PluginExtension) project.getExtensions().getByName("h2");
+    Path migrations = Files.createDirectories(workDirectory.resolve("migrations"));
+    Files.write(migrations.resolve("changelog.sql"), "CREATE TABLE A(ID INT);".getBytes());
+    Path baseDir = Files.createDirectories(workDirectory.resolve("db"));
+    pluginConfig.getMigrationFiles().from(migrations);
+    pluginConfig.getBaseDir().set(baseDir.toFile());
+    pluginConfig.getSnapshotCacheDir().set(workDirectory.resolve("snapshots").toFile());
+    pluginConfig.getDatabaseName().set("app");
+    try (ServerSocket socket = new ServerSocket(0)) {
+      pluginConfig.getTcpPort().set(socket.getLocalPort());
+    }
+
+    Path expiredSnapshot = Files.createDirectories(workDirectory.resolve("snapshots/expired"));
+    Files.setLastModifiedTime(expiredSnapshot, FileTime.from(Instant.now().minus(Duration.ofDays(8))));
+    Path recentSnapshot = Files.createDirectories(workDirectory.resolve("snapshots/recent"));
+    Files.setLastModifiedTime(recentSnapshot, FileTime.from(Instant.now().minus(Duration.ofDays(6))));
+
+    Files.write(baseDir.resolve("app.mv.db"), "migrated".getBytes());
+    Files.write(baseDir.resolve("app.trace.db"), "trace".getBytes());
+    Files.write(baseDir.resolve("app_fork1.mv.db"), "clone".getBytes());
+    SaveH2SnapshotTask saveTask = (SaveH2SnapshotTask) project.getTasks().getByName("saveH2Snapshot");
+    assertTrue(saveTask.getMetricsService().isPresent(), "The snapshot should be able to pause the metrics sampler.");
+    saveTask.save();
+    Path snapshotDir = workDirectory.resolve("snapshots").resolve(saveTask.getSnapshotKey());
+    try (Stream<Path> snapshotFiles = Files.list(snapshotDir)) {
+      assertEquals(Collections.singletonList("app.mv.db"), snapshotFiles.map(file -> file.getFileName().toString()).collect(Collectors.toList()), "Only the database file should be in the snapshot.");
+    }
+    assertFalse(Files.exists(expiredSnapshot), "Snapshots unused for longer than the retention should be evicted.");
+    assertTrue(Files.exists(recentSnapshot), "Snapshots used within the retention should be kept.");
+
+    Files.write(baseDir.resolve("app.mv.db"), "changed by the tests".getBytes());
+    Files.write(baseDir.resolve("app.h2.db"), "stale".getBytes());
+    RestoreH2SnapshotTask restoreTask = (RestoreH2SnapshotTask) project.getTasks().getByName("restoreH2Snapshot");
+    Files.setLastModifiedTime(snapshotDir, FileTime.from(Instant.now().minus(Duration.ofDays(6))));
+    restoreTask.restore();
+    assertTrue(Files.getLastModifiedTime(snapshotDir).toInstant().isAfter(Instant.now().minus(Duration.ofDays(1))), "Restoring a snapshot should renew its retention.");
+    assertEquals("migrated", new String(Files.readAllBytes(baseDir.resolve("app.mv.db"))), "The database file should be restored from the snapshot.");
+    assertFalse(Files.exists(baseDir.resolve("app.h2.db")), "Stale files of the database should be deleted.");
+    assertTrue(Files.exists(baseDir.resolve("app_fork1.mv.db")), "Other databases in the base directory should be left alone.");
+    assertTrue(restoreTask.getRestoredMarker().get().getAsFile().isFile(), "The restore should be recorded in the marker file.");
+
+    pluginConfig.getDatabaseName().set("other");
+    restoreTask.restore();
+    assertFalse(restoreTask.getRestoredMarker().get().getAsFile().exists(), "Without a matching snapshot the marker file should be deleted.");
+  }
+
+  @Test
+  @DisplayName("Storage and tuning settings end up in the JDBC url and are validated.")
+  void storageSettings_in_jdbc_url(){
+    Project project = ProjectBuilder.builder().build();
+    project.getPluginManager().apply(PLUGIN_ID);
+    H2PluginExtension pluginConfig = (H2PluginExtension) project.getExtensions().getByName("h2");
+
+    assertEquals("jdbc:h2:tcp://localhost:9092/./test", pluginConfig.buildJdbcUrl(), "File storage should be used by default.");
+
+    pluginConfig.getStorage().set(H2StorageMode.MEMORY);
+    pluginConfig.getCacheSize().set(65536);
+    pluginConfig.getWriteDelay().set(10000);
+    pluginConfig.getMaxHeapSize().set("1g");
+    assertEquals("jdbc:h2:tcp://localhost:9092/mem:test;DB_CLOSE_DELAY=-1;CACHE_SIZE=65536;WRITE_DELAY=10000",
+                 pluginConfig.buildJdbcUrl(), "The in-memory database should outlive its connections and use the tuning settings.");
+    assertEquals(Arrays.asList("-Xmx1g"), pluginConfig.buildH2ServerJvmArgs(), "The heap size should be passed to the server JVM.");
+
+    pluginConfig.getAutoCompactFillRate().set(101);
+    assertThrows(InvalidUserDataException.class, pluginConfig::validate, "A fill rate above 100 percent should be rejected.");
+  }
+
+  @Test
+  @DisplayName("Test forks get the JDBC url of their own clone of the template database.")
+  void isolatedForks_get_own_database(){
+    Project project = ProjectBuilder.builder().build();
+    project.getPluginManager().apply("java");
+    project.getPluginManager().apply(PLUGIN_ID);
+    org.gradle.api.tasks.testing.Test test = (org.gradle.api.tasks.testing.Test) project.getTasks().getByName("test");
+    H2TestIsolationExtension isolation = (H2TestIsolationExtension) test.getExtensions().getByName("h2");
+    test.setMaxParallelForks(2);
+    isolation.getIsolatedForks().set(true);
+
+    List<String> jvmArgs = new ArrayList<>();
+    test.getJvmArgumentProviders().forEach(provider -> provider.asArguments().forEach(jvmArgs::add));
+
+    String slotLocks = new File(project.getBuildDir(), "h2/fork-slots/test").getAbsolutePath();
+    assertEquals(Arrays.asList("-Dh2.jdbc.url.forks=2",
+                               "-Dh2.jdbc.url.locks=" + slotLocks,
+                               "-Dh2.jdbc.url.1=jdbc:h2:tcp://localhost:9092/./test_fork1",
+                               "-Dh2.jdbc.url.2=jdbc:h2:tcp://localhost:9092/./test_fork2",
+                               "-javaagent:" + new File(slotLocks, "fork-slot-agent.jar").getAbsolutePath() + "=h2.jdbc.url"),
+                 jvmArgs, "Every fork slot should get the url of its own clone, and the forks the agent claiming a slot for them.");
+    assertTrue(test.getMustRunAfter().getDependencies(test).contains(project.getTasks().getByName("startH2")), "Tests should run after the server has started.");
+  }
+
+  private static List<String> mainArgs(JavaExec task){
+    List<String> args = new ArrayList<>(task.getArgs());
+    task.getArgumentProviders().forEach(provider -> provider.asArguments().forEach(args::add));
+    return args;
   }
 
   @Test
@@ -102,7 +326,7 @@ class H2PluginTest {
                                      .withPluginClasspath()
                                      .withDebug(true)
                                      .withProjectDir(temporaryProjectDirectory.toFile())
-                                     .withArguments("startH2","stopH2")
+                                     .withArguments("startH2","stopH2","--configuration-cache")
                                      .build();
 
     assertEquals(SUCCESS, Objects.requireNonNull(result.task(":startH2")).getOutcome());
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.data;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * CSV reader testing
+ */
+@DisplayName("CSV reader")
+class CsvReaderTest {
+
+  @Test
+  @DisplayName("Reader streams records with quoted fields, embedded line breaks and empty fields.")
+  void readRecord_rfc4180() throws IOException {
+    String csv = "ID,NAME,NOTE\r\n1,\"Doe, Jane\",\"said \"\"hi\"\"\nand left\"\n2,,\"\"\n";
+
+    try (CsvReader reader = new CsvReader(new StringReader(csv))) {
+      assertEquals(Arrays.asList("ID", "NAME", "NOTE"), reader.readRecord(), "The header should be read as the first record.");
+      assertEquals(Arrays.asList("1", "Doe, Jane", "said \"hi\"\nand left"), reader.readRecord(), "Quoted fields should keep separators, quotes and line breaks.");
+      assertEquals(Arrays.asList("2", null, ""), reader.readRecord(), "Empty unquoted fields should be null, empty quoted fields empty.");
+      assertNull(reader.readRecord(), "The end of the input should be reported as null.");
+    }
+  }
+
+  @Test
+  @DisplayName("A line without any characters is read as a record without fields, an empty quoted field is not.")
+  void readRecord_blank_line() throws IOException {
+    try (CsvReader reader = new CsvReader(new StringReader("A\n\r\n\"\"\n\n"))) {
+      assertEquals(Collections.singletonList("A"), reader.readRecord(), "The header should be read as the first record.");
+      assertEquals(Collections.emptyList(), reader.readRecord(), "A blank line should have no fields.");
+      assertEquals(Collections.singletonList(""), reader.readRecord(), "An empty quoted field should be an empty string.");
+      assertEquals(Collections.emptyList(), reader.readRecord(), "A trailing blank line should have no fields.");
+      assertNull(reader.readRecord(), "The end of the input should be reported as null.");
+    }
+  }
+
+  @Test
+  @DisplayName("Reader rejects an unterminated quoted field.")
+  void readRecord_unterminated_quote() {
+    CsvReader reader = new CsvReader(new StringReader("1,\"open"));
+
+    assertThrows(IOException.class, reader::readRecord, "An unterminated quote should fail the read.");
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.data;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * CSV writer testing
+ */
+@DisplayName("CSV writer")
+class CsvWriterTest {
+
+  @Test
+  @DisplayName("Writer quotes only fields with separators, quotes, line breaks or no characters.")
+  void writeRecord_quotes_when_needed() throws IOException {
+    StringWriter csv = new StringWriter();
+
+    try (CsvWriter writer = new CsvWriter(csv)) {
+      writer.writeRecord(Arrays.asList("1", "Doe, Jane", "said \"hi\"", null, ""));
+    }
+
+    assertEquals("1,\"Doe, Jane\",\"said \"\"hi\"\"\",,\"\"\n", csv.toString(), "Only fields that need it should be quoted.");
+  }
+
+  @Test
+  @DisplayName("Records written are read back unchanged, including nulls and empty strings.")
+  void writeRecord_round_trip() throws IOException {
+    List<String> record = Arrays.asList("2", "line\r\nbreak", null, "", "\"");
+    StringWriter csv = new StringWriter();
+    try (CsvWriter writer = new CsvWriter(csv)) {
+      writer.writeRecord(record);
+    }
+
+    try (CsvReader reader = new CsvReader(new StringReader(csv.toString()))) {
+      assertEquals(record, reader.readRecord(), "The reader should return the fields that were written.");
+      assertNull(reader.readRecord(), "Only one record should have been written.");
+    }
+  }
+}
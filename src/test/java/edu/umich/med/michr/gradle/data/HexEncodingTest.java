@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.data;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Types;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Hex encoding testing
+ */
+@DisplayName("Hex encoding")
+class HexEncodingTest {
+
+  @Test
+  @DisplayName("Bytes round trip through upper case hex digits and lower case digits are read too.")
+  void encode_decode() {
+    byte[] bytes = {0, 1, (byte) 0xC3, (byte) 0xA9, (byte) 0xFF};
+
+    assertEquals("0001C3A9FF", HexEncoding.encode(bytes), "Every byte should be written as two upper case hex digits.");
+    assertArrayEquals(bytes, HexEncoding.decode("0001c3a9ff"), "Lower case hex digits should be read as well.");
+    assertNull(HexEncoding.encode(null), "NULL should stay NULL when encoded.");
+    assertNull(HexEncoding.decode(null), "NULL should stay NULL when decoded.");
+    assertTrue(HexEncoding.isBinary(Types.VARBINARY), "VARBINARY columns should be binary.");
+    assertFalse(HexEncoding.isBinary(Types.VARCHAR), "VARCHAR columns should not be binary.");
+  }
+
+  @Test
+  @DisplayName("Text that is not an even number of hex digits is rejected.")
+  void decode_invalid() {
+    assertThrows(IllegalArgumentException.class, () -> HexEncoding.decode("ABC"), "An odd number of digits should be rejected.");
+    assertThrows(IllegalArgumentException.class, () -> HexEncoding.decode("ZZ"), "Characters other than hex digits should be rejected.");
+  }
+}
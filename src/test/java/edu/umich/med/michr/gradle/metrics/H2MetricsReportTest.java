@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.metrics;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * H2 metrics report testing
+ */
+@DisplayName("H2 metrics report")
+class H2MetricsReportTest {
+
+  @Test
+  @DisplayName("Report keeps the peaks of all samples and the file growth between the first and the last sample.")
+  void recordSample_tracks_peaks() {
+    H2MetricsReport report = new H2MetricsReport(0);
+
+    report.recordSample(2, 0, 1, 1000L, "98");
+    report.recordSample(5, 2, 4, 1500L, "95");
+    report.recordSample(1, 0, 0, 4000L, null);
+    report.finish(3_000_000_000L, Collections.emptyList());
+
+    assertEquals(3, report.getSamples(), "Every sample should be counted.");
+    assertEquals(5, report.getPeakConnections(), "The highest connection count should be reported.");
+    assertEquals(2, report.getPeakBlockedSessions(), "The highest count of blocked sessions should be reported.");
+    assertEquals(1, report.getBlockedSessionSamples(), "Only samples with blocked sessions should count as lock waits.");
+    assertEquals(4, report.getPeakLocks(), "The highest lock count should be reported.");
+    assertEquals(3000L, report.getFileGrowth(), "File growth should be the difference between the first and last file size.");
+    assertEquals(3000L, report.getDurationMillis(), "The duration should span start to finish.");
+  }
+
+  @Test
+  @DisplayName("JSON report lists the slow queries in order with escaped statements.")
+  void toJson_escapes_statements() {
+    H2MetricsReport report = new H2MetricsReport(0);
+    report.recordSample(1, 0, 0, null, null);
+    report.finish(0, Arrays.asList(new SlowQuery("SELECT \"A\"\nFROM T", 4, 10, 7),
+                                   new SlowQuery("SELECT 1", 1, 2, 2)));
+
+    String json = report.toJson();
+
+    assertTrue(json.contains("\"sql\": \"SELECT \\\"A\\\"\\nFROM T\""), "Quotes and line breaks should be escaped.");
+    assertTrue(json.contains("\"averageMillis\": 2.500"), "The average execution time should be derived from the total.");
+    assertTrue(json.contains("\"initialFileSize\": null"), "In-memory databases should have no file size.");
+    assertTrue(json.indexOf("SELECT \\\"A\\\"") < json.indexOf("SELECT 1"), "The slow queries should keep their order.");
+    assertTrue(report.toHtml().contains("SELECT &quot;A&quot;"), "Statements should be escaped in the HTML report.");
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.server;
+
+import org.gradle.api.Project;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Class data sharing arguments testing
+ */
+@DisplayName("Class data sharing arguments")
+class ClassDataSharingArgumentsTest {
+
+  @Test
+  @DisplayName("The archive is keyed on the classpath and the full JDK release, and asking for the arguments has no side effects.")
+  void archiveKey_follows_classpath_and_jdk_release(@TempDir Path workDirectory) throws IOException {
+    Project project = ProjectBuilder.builder().withProjectDir(workDirectory.resolve("project").toFile()).build();
+    Path jar = Files.write(workDirectory.resolve("h2.jar"), "classes".getBytes());
+    Path javaHome = Files.createDirectories(workDirectory.resolve("jdk"));
+    Path release = Files.write(javaHome.resolve("release"), "JAVA_RUNTIME_VERSION=\"17.0.1+12\"".getBytes());
+    File archiveDir = workDirectory.resolve("cds").toFile();
+    ClassDataSharingArguments arguments = new ClassDataSharingArguments(
+      project.provider(() -> true), project.files(jar), project.getLayout().dir(project.provider(() -> archiveDir)),
+      project.provider(() -> 17), project.provider(() -> javaHome.toString()), true);
+
+    File initialArchive = arguments.getArchiveFile();
+    assertEquals(initialArchive, arguments.getArchiveFile(), "The archive should be stable for the same classpath and JDK.");
+    assertTrue(arguments.asArguments().iterator().next().startsWith("-XX:ArchiveClassesAtExit="), "A missing archive should be dumped by the server JVM.");
+    assertFalse(archiveDir.exists(), "Computing the arguments should not create the archive directory.");
+
+    Files.write(release, "JAVA_RUNTIME_VERSION=\"17.0.2+8\"".getBytes());
+    File updatedJdkArchive = arguments.getArchiveFile();
+    assertNotEquals(initialArchive, updatedJdkArchive, "A JDK updated in place should get its own archive.");
+
+    Files.write(jar, "other classes".getBytes());
+    assertNotEquals(updatedJdkArchive, arguments.getArchiveFile(), "A changed classpath should get its own archive.");
+
+    arguments.createArchiveDir();
+    assertTrue(archiveDir.isDirectory(), "The archive directory should be created before the server JVM starts.");
+  }
+
+  @Test
+  @DisplayName("The classpath is hashed again only when a classpath file changes its size or modification time.")
+  void archiveKey_memoized_per_file_stamps(@TempDir Path workDirectory) throws IOException {
+    Project project = ProjectBuilder.builder().withProjectDir(workDirectory.resolve("project").toFile()).build();
+    Path jar = Files.write(workDirectory.resolve("h2.jar"), "classes".getBytes());
+    FileTime modified = Files.getLastModifiedTime(jar);
+    Path javaHome = Files.createDirectories(workDirectory.resolve("jdk"));
+    File archiveDir = workDirectory.resolve("cds").toFile();
+    ClassDataSharingArguments arguments = new ClassDataSharingArguments(
+      project.provider(() -> true), project.files(jar), project.getLayout().dir(project.provider(() -> archiveDir)),
+      project.provider(() -> 17), project.provider(() -> javaHome.toString()), true);
+
+    File initialArchive = arguments.getArchiveFile();
+    Files.write(jar, "CLASSES".getBytes());
+    Files.setLastModifiedTime(jar, modified);
+    assertEquals(initialArchive, arguments.getArchiveFile(), "An unchanged size and modification time should reuse the computed key.");
+
+    Files.setLastModifiedTime(jar, FileTime.fromMillis(modified.toMillis() + 2000));
+    assertNotEquals(initialArchive, arguments.getArchiveFile(), "A newer modification time should hash the classpath again.");
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.server;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Rolling log file testing
+ */
+@DisplayName("Rolling log file")
+class RollingLogFileTest {
+
+  @Test
+  @DisplayName("Log rolls over at the maximum size and keeps only the configured number of backups.")
+  void writeLine_rolls_over(@TempDir Path logDirectory) throws IOException {
+    Path log = logDirectory.resolve("server.log");
+
+    try (RollingLogFile logFile = new RollingLogFile(log, 25, 2)) {
+      for (int line = 1; line <= 10; line++) {
+        logFile.writeLine("line-" + line);
+      }
+    }
+
+    assertEquals(Collections.singletonList("line-10"), Files.readAllLines(log, StandardCharsets.UTF_8), "The current log should only hold the lines since the last roll over.");
+    assertEquals(Arrays.asList("line-7", "line-8", "line-9"), Files.readAllLines(logDirectory.resolve("server.log.1"), StandardCharsets.UTF_8), "The newest backup should hold the lines before the last roll over.");
+    assertEquals(Arrays.asList("line-4", "line-5", "line-6"), Files.readAllLines(logDirectory.resolve("server.log.2"), StandardCharsets.UTF_8), "Older backups should be shifted.");
+    assertFalse(Files.exists(logDirectory.resolve("server.log.3")), "Backups beyond the maximum should be deleted.");
+  }
+
+  @Test
+  @DisplayName("Log of an earlier run is rolled when the log is opened again.")
+  void open_rolls_previous_run(@TempDir Path logDirectory) throws IOException {
+    Path log = logDirectory.resolve("server.log");
+    Files.write(log, Collections.singletonList("previous run"), StandardCharsets.UTF_8);
+
+    try (RollingLogFile logFile = new RollingLogFile(log, 1024, 1)) {
+      logFile.writeLine("this run");
+    }
+
+    assertEquals(Collections.singletonList("this run"), Files.readAllLines(log, StandardCharsets.UTF_8), "Every run should start with an empty log.");
+    assertEquals(Collections.singletonList("previous run"), Files.readAllLines(logDirectory.resolve("server.log.1"), StandardCharsets.UTF_8), "The log of the earlier run should be kept as a backup.");
+  }
+}
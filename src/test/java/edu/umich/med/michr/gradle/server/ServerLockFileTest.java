@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.server;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Server lock file testing
+ */
+@DisplayName("Server lock file")
+class ServerLockFileTest {
+
+  @Test
+  @DisplayName("Lock file round trips the server it records, and a server whose process is gone is not running.")
+  void write_read_stale_lock(@TempDir Path lockDirectory) {
+    File file = lockDirectory.resolve("h2/server.lock").toFile();
+    String fingerprint = ServerLockFile.fingerprint(Arrays.asList("-tcpPort", "9092"));
+
+    new ServerLockFile(Long.MAX_VALUE, 9092, 8082, H2ServerMode.FORKED, fingerprint).write(file);
+    Optional<ServerLockFile> lock = ServerLockFile.read(file);
+
+    assertTrue(lock.isPresent(), "The written lock file should be read back.");
+    assertEquals(Long.MAX_VALUE, lock.get().getPid(), "The pid should be recorded.");
+    assertEquals(fingerprint, lock.get().getFingerprint(), "The settings fingerprint should be recorded.");
+    assertFalse(lock.get().isRunning(), "A server whose process does not exist should be stale.");
+
+    ServerLockFile.delete(file);
+    assertFalse(ServerLockFile.read(file).isPresent(), "A deleted lock file should not be read.");
+  }
+
+  @Test
+  @DisplayName("A recorded pid now used by another process is not taken for the server and is left alone.")
+  void reused_pid_not_the_server(@TempDir Path lockDirectory) {
+    File file = lockDirectory.resolve("server.lock").toFile();
+    long pid = ProcessHandle.current().pid();
+
+    new ServerLockFile(pid, Instant.EPOCH, 9092, 8082, H2ServerMode.FORKED, "").write(file);
+    ServerLockFile staleLock = ServerLockFile.read(file).orElseThrow(AssertionError::new);
+    assertFalse(staleLock.isProcessAlive(), "A process started at another instant should not be the recorded server.");
+    staleLock.kill();
+    assertTrue(ProcessHandle.current().isAlive(), "A process not confirmed to be the server should never be signalled.");
+
+    new ServerLockFile(pid, 9092, 8082, H2ServerMode.FORKED, "").write(file);
+    assertTrue(ServerLockFile.read(file).orElseThrow(AssertionError::new).isProcessAlive(), "The process recorded with its start instant should be recognized.");
+  }
+
+  @Test
+  @DisplayName("A server whose process can not be confirmed is running for as long as it answers on both ports.")
+  void unconfirmed_process_running_while_listening() throws IOException {
+    ServerLockFile unknownPid;
+    ServerLockFile otherDaemon;
+    try (ServerSocket tcp = new ServerSocket(0); ServerSocket web = new ServerSocket(0)) {
+      unknownPid = new ServerLockFile(ServerLockFile.UNKNOWN_PID, null, tcp.getLocalPort(), web.getLocalPort(),
+                                      H2ServerMode.FORKED, "");
+      otherDaemon = new ServerLockFile(Long.MAX_VALUE, null, tcp.getLocalPort(), web.getLocalPort(),
+                                       H2ServerMode.IN_PROCESS, "");
+      assertTrue(unknownPid.isRunning(), "A forked server with an unknown pid answering on its ports should be running.");
+      assertTrue(otherDaemon.isRunning(), "A server hosted by another daemon answering on its ports should be running.");
+    }
+    assertFalse(unknownPid.isRunning(), "A forked server with an unknown pid whose ports are closed should be stale.");
+    assertFalse(otherDaemon.isRunning(), "A server hosted by another daemon whose ports are closed should be stale.");
+  }
+
+  @Test
+  @DisplayName("Unreadable lock files are ignored and fingerprints change with the settings.")
+  void corrupt_lock_and_fingerprint(@TempDir Path lockDirectory) throws IOException {
+    Path file = lockDirectory.resolve("server.lock");
+    Files.write(file, Collections.singletonList("pid=not a number"), StandardCharsets.UTF_8);
+
+    assertFalse(ServerLockFile.read(file.toFile()).isPresent(), "A corrupt lock file should be treated as missing.");
+    assertEquals(ServerLockFile.fingerprint(Arrays.asList("a", "b")), ServerLockFile.fingerprint(Arrays.asList("a", "b")), "The fingerprint should be stable.");
+    assertNotEquals(ServerLockFile.fingerprint(Arrays.asList("ab", "")), ServerLockFile.fingerprint(Arrays.asList("a", "b")), "Settings should not run into each other.");
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.server;
+
+import org.gradle.api.GradleException;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Server readiness probe testing
+ */
+@DisplayName("Server readiness probe")
+class ServerReadinessProbeTest {
+  private static final String LOCALHOST = "localhost";
+
+  @Test
+  @DisplayName("Probe reports the server ready as soon as its port accepts connections.")
+  void awaitReady_listening_port() throws IOException {
+    try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      ServerReadinessProbe probe = new ServerReadinessProbe(LOCALHOST,
+                                                            Collections.singletonList(serverSocket.getLocalPort()),
+                                                            Duration.ofSeconds(5), null, () -> true);
+
+      Duration timeToReady = probe.awaitReady();
+
+      assertTrue(timeToReady.compareTo(Duration.ofSeconds(5)) < 0, "The probe should not wait for the timeout.");
+    }
+  }
+
+  @Test
+  @DisplayName("Probe fails fast when the server process is gone.")
+  void awaitReady_server_exited() throws IOException {
+    int closedPort;
+    try (ServerSocket serverSocket = new ServerSocket(0)) {
+      closedPort = serverSocket.getLocalPort();
+    }
+    ServerReadinessProbe probe = new ServerReadinessProbe(LOCALHOST, Collections.singletonList(closedPort),
+                                                          Duration.ofMinutes(5), null, () -> false);
+
+    GradleException exception = assertThrows(GradleException.class, probe::awaitReady);
+    assertTrue(exception.getMessage().contains("exited"), "The failure should say the server exited.");
+  }
+
+  @Test
+  @DisplayName("Probe gives up once the startup timeout has elapsed.")
+  void awaitReady_timeout() throws IOException {
+    int closedPort;
+    try (ServerSocket serverSocket = new ServerSocket(0)) {
+      closedPort = serverSocket.getLocalPort();
+    }
+    ServerReadinessProbe probe = new ServerReadinessProbe(LOCALHOST, Collections.singletonList(closedPort),
+                                                          Duration.ofMillis(200), null, () -> true);
+
+    GradleException exception = assertThrows(GradleException.class, probe::awaitReady);
+    assertTrue(exception.getMessage().contains("200 ms"), "The failure should report the startup timeout.");
+  }
+}
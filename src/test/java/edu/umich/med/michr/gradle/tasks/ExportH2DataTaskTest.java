@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.tasks;
+
+import edu.umich.med.michr.gradle.data.ExportFormat;
+import edu.umich.med.michr.gradle.server.H2JdbcDriver;
+import org.gradle.api.InvalidUserDataException;
+import org.gradle.api.Project;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.h2.engine.Constants;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Export H2 data task testing
+ */
+@DisplayName("Export H2 data task")
+class ExportH2DataTaskTest {
+  private static final String JDBC_URL = "jdbc:h2:mem:export_task_test;DB_CLOSE_DELAY=-1";
+
+  @TempDir
+  Path workDirectory;
+
+  private ExportH2DataTask exportTask;
+
+  @BeforeEach
+  void setup() throws SQLException, URISyntaxException, IOException {
+    List<File> h2Classpath = Collections.singletonList(
+      new File(Constants.class.getProtectionDomain().getCodeSource().getLocation().toURI()));
+    try (Connection connection = new H2JdbcDriver(h2Classpath).connect(JDBC_URL, "sa", "");
+         Statement statement = connection.createStatement()) {
+      statement.execute("DROP TABLE IF EXISTS PERSON");
+      statement.execute("CREATE TABLE PERSON(ID INT PRIMARY KEY, NAME VARCHAR(50))");
+      statement.execute("INSERT INTO PERSON VALUES (1, 'Doe, Jane'), (2, NULL)");
+    }
+
+    Project project = ProjectBuilder.builder().withProjectDir(workDirectory.resolve("project").toFile()).build();
+    exportTask = project.getTasks().register("exportTest", ExportH2DataTask.class).get();
+    exportTask.getH2Classpath().from(h2Classpath);
+    exportTask.getJdbcUrl().set(JDBC_URL);
+    exportTask.getDatabaseUser().set("sa");
+    exportTask.getDatabasePassword().set("");
+    //Gradle creates the output directory before the task runs
+    exportTask.getOutputDir().set(Files.createDirectories(workDirectory.resolve("export")).toFile());
+    exportTask.getSummaryFile().set(workDirectory.resolve("export-summary.csv").toFile());
+  }
+
+  @Test
+  @DisplayName("Tables are exported to compressed CSV files, replacing only the files of the previous export.")
+  void export_csv_replaces_previous_export() throws IOException {
+    Path exportDir = Files.createDirectories(workDirectory.resolve("export"));
+    Files.write(exportDir.resolve("PUBLIC.DROPPED.csv.gz"), new byte[0]);
+    Files.write(exportDir.resolve("README.txt"), "kept".getBytes());
+    Files.write(workDirectory.resolve("export-summary.csv"), Arrays.asList("TABLE,FILE", "PUBLIC.DROPPED,PUBLIC.DROPPED.csv.gz"));
+
+    exportTask.export();
+
+    assertEquals(Arrays.asList("ID,NAME", "1,\"Doe, Jane\"", "2,"), readGzip(exportDir.resolve("PUBLIC.PERSON.csv.gz")), "The rows should be exported as CSV with a header.");
+    assertFalse(Files.exists(exportDir.resolve("PUBLIC.DROPPED.csv.gz")), "Files of the previous export should be replaced.");
+    assertTrue(Files.exists(exportDir.resolve("README.txt")), "Files the task did not write should be left alone.");
+    assertTrue(Files.readAllLines(workDirectory.resolve("export-summary.csv")).get(1).startsWith("PUBLIC.PERSON,PUBLIC.PERSON.csv.gz,2,"), "The summary should list the exported rows.");
+  }
+
+  @Test
+  @DisplayName("SQL files hold only inserts by default and start with the table DDL on request.")
+  void export_sql_with_and_without_ddl() throws IOException {
+    Path file = workDirectory.resolve("export").resolve("PUBLIC.PERSON.sql");
+    exportTask.getFormat().set(ExportFormat.SQL);
+    exportTask.getCompress().set(false);
+
+    exportTask.export();
+    List<String> dataOnly = Files.readAllLines(file);
+    assertEquals(2, dataOnly.size(), "Only the inserts should be exported by default.");
+    assertTrue(dataOnly.stream().allMatch(line -> line.startsWith("INSERT INTO \"PUBLIC\".\"PERSON\"")), "Every row should be an insert into the quoted table.");
+
+    exportTask.getIncludeDdl().set(true);
+    exportTask.export();
+    List<String> withDdl = Files.readAllLines(file);
+    assertTrue(withDdl.get(0).startsWith("CREATE "), "The file should start with the DDL of the table.");
+    assertTrue(withDdl.stream().noneMatch(line -> line.startsWith("CREATE USER")), "Users should not be part of the DDL.");
+    assertEquals(dataOnly, withDdl.subList(withDdl.size() - 2, withDdl.size()), "The inserts should follow the DDL.");
+  }
+
+  @Test
+  @DisplayName("A parallelism below one is rejected.")
+  void export_invalid_parallelism() {
+    exportTask.getParallelism().set(0);
+
+    assertThrows(InvalidUserDataException.class, exportTask::export, "No table can be exported without a thread.");
+  }
+
+  private static List<String> readGzip(Path file) throws IOException {
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8))) {
+      return reader.lines().collect(Collectors.toList());
+    }
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2020 The Regents of the University of Michigan - Michigan Institute for Clinical and Health Research.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.umich.med.michr.gradle.tasks;
+
+import edu.umich.med.michr.gradle.server.H2JdbcDriver;
+import org.gradle.api.GradleException;
+import org.gradle.api.InvalidUserDataException;
+import org.gradle.api.Project;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.h2.engine.Constants;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Load H2 data task testing
+ */
+@DisplayName("Load H2 data task")
+class LoadH2DataTaskTest {
+  private static final String JDBC_URL = "jdbc:h2:mem:load_task_test;DB_CLOSE_DELAY=-1";
+
+  @TempDir
+  Path workDirectory;
+
+  private H2JdbcDriver driver;
+  private List<File> h2Classpath;
+  private Project project;
+  private LoadH2DataTask loadTask;
+
+  @BeforeEach
+  void setup() throws SQLException, URISyntaxException {
+    h2Classpath = Collections.singletonList(
+      new File(Constants.class.getProtectionDomain().getCodeSource().getLocation().toURI()));
+    driver = new H2JdbcDriver(h2Classpath);
+    try (Connection connection = driver.connect(JDBC_URL, "sa", "");
+         Statement statement = connection.createStatement()) {
+      statement.execute("DROP TABLE IF EXISTS \"Person\"");
+      statement.execute("CREATE TABLE \"Person\"(\"Id\" INT PRIMARY KEY, \"Name\" VARCHAR(50))");
+      statement.execute("DROP TABLE IF EXISTS TAG");
+      statement.execute("CREATE TABLE TAG(NAME VARCHAR(50))");
+    }
+
+    project = ProjectBuilder.builder().withProjectDir(workDirectory.resolve("project").toFile()).build();
+    loadTask = project.getTasks().register("loadTest", LoadH2DataTask.class).get();
+    loadTask.getH2Classpath().from(h2Classpath);
+    loadTask.getJdbcUrl().set(JDBC_URL);
+    loadTask.getDatabaseUser().set("sa");
+    loadTask.getDatabasePassword().set("");
+  }
+
+  @Test
+  @DisplayName("Table and column names are quoted, so mixed case names load as they are written.")
+  void load_quoted_names() throws IOException, SQLException {
+    loadTask.getDataFiles().from(Files.write(workDirectory.resolve("PUBLIC.Person.csv"), Arrays.asList("Id,Name", "1,Jane", "2,John")));
+
+    loadTask.load();
+
+    try (Connection connection = driver.connect(JDBC_URL, "sa", "");
+         Statement statement = connection.createStatement();
+         ResultSet count = statement.executeQuery("SELECT COUNT(*) FROM \"Person\"")) {
+      count.next();
+      assertEquals(2, count.getInt(1), "Every row should be loaded into the mixed case table.");
+    }
+  }
+
+  @Test
+  @DisplayName("A malformed row is reported with its row number in its own file.")
+  void malformed_row_numbered_per_file() throws IOException {
+    Path first = Files.write(Files.createDirectories(workDirectory.resolve("a")).resolve("PUBLIC.Person.csv"), Arrays.asList("Id,Name", "1,Jane", "2,John", "3,Joe"));
+    Path second = Files.write(Files.createDirectories(workDirectory.resolve("b")).resolve("PUBLIC.Person.csv"), Arrays.asList("Id,Name", "4,Ann", "5"));
+    loadTask.getDataFiles().from(first, second);
+    loadTask.getBatchSize().set(2);
+
+    GradleException exception = assertThrows(GradleException.class, loadTask::load, "A row with missing fields should fail the load.");
+    Throwable failure = exception.getCause() == null ? exception : exception.getCause();
+    assertTrue(failure.getMessage().endsWith("in row 2."), "The row number should count from the start of the failing file: " + failure.getMessage());
+  }
+
+  @Test
+  @DisplayName("NULL rows of a single column table survive an export and load, blank lines elsewhere are skipped.")
+  void export_load_single_column_nulls() throws IOException, SQLException {
+    try (Connection connection = driver.connect(JDBC_URL, "sa", "");
+         Statement statement = connection.createStatement()) {
+      statement.execute("INSERT INTO TAG VALUES ('a'), (NULL), ('b'), (NULL)");
+    }
+    exportCsv("TAG");
+    try (Connection connection = driver.connect(JDBC_URL, "sa", "");
+         Statement statement = connection.createStatement()) {
+      statement.execute("DELETE FROM TAG");
+    }
+
+    loadTask.getDataFiles().from(workDirectory.resolve("export/PUBLIC.TAG.csv"),
+                                 Files.write(workDirectory.resolve("PUBLIC.Person.csv"), Arrays.asList("Id,Name", "", "1,Jane", "")));
+    loadTask.load();
+
+    try (Connection connection = driver.connect(JDBC_URL, "sa", "");
+         Statement statement = connection.createStatement();
+         ResultSet tags = statement.executeQuery("SELECT COUNT(*), COUNT(NAME) FROM TAG");
+         Statement peopleStatement = connection.createStatement();
+         ResultSet people = peopleStatement.executeQuery("SELECT COUNT(*) FROM \"Person\"")) {
+      tags.next();
+      assertEquals(4, tags.getInt(1), "Every exported row should be loaded back.");
+      assertEquals(2, tags.getInt(2), "The NULL rows should be loaded as NULL.");
+      people.next();
+      assertEquals(1, people.getInt(1), "Blank lines of a table with several columns should be skipped.");
+    }
+  }
+
+  @Test
+  @DisplayName("Binary values survive an export and load as hex digits.")
+  void export_load_binary() throws IOException, SQLException {
+    byte[] value = {0, 1, (byte) 0xC3, (byte) 0xA9, (byte) 0xFF};
+    try (Connection connection = driver.connect(JDBC_URL, "sa", "");
+         Statement statement = connection.createStatement()) {
+      statement.execute("DROP TABLE IF EXISTS DOCUMENT");
+      statement.execute("CREATE TABLE DOCUMENT(ID INT PRIMARY KEY, CONTENT VARBINARY(16))");
+      statement.execute("INSERT INTO DOCUMENT VALUES (1, X'0001C3A9FF'), (2, NULL)");
+    }
+    exportCsv("DOCUMENT");
+    assertEquals(Arrays.asList("ID,CONTENT", "1,0001C3A9FF", "2,"), Files.readAllLines(workDirectory.resolve("export/PUBLIC.DOCUMENT.csv")), "Binary values should be exported as hex digits.");
+    try (Connection connection = driver.connect(JDBC_URL, "sa", "");
+         Statement statement = connection.createStatement()) {
+      statement.execute("DELETE FROM DOCUMENT");
+    }
+
+    loadTask.getDataFiles().from(workDirectory.resolve("export/PUBLIC.DOCUMENT.csv"));
+    loadTask.load();
+
+    try (Connection connection = driver.connect(JDBC_URL, "sa", "");
+         Statement statement = connection.createStatement();
+         ResultSet documents = statement.executeQuery("SELECT CONTENT FROM DOCUMENT ORDER BY ID")) {
+      assertTrue(documents.next(), "The first row should be loaded.");
+      assertArrayEquals(value, documents.getBytes(1), "The bytes should be loaded as they were exported.");
+      assertTrue(documents.next(), "The second row should be loaded.");
+      assertNull(documents.getBytes(1), "A NULL binary value should stay NULL.");
+    }
+  }
+
+  @Test
+  @DisplayName("Deferred scripts run in file name order, however the collection is built.")
+  void deferred_scripts_in_name_order() throws IOException, SQLException {
+    loadTask.getDataFiles().from(Files.write(workDirectory.resolve("PUBLIC.Person.csv"), Arrays.asList("Id,Name", "1,Jane")));
+    Path second = Files.write(workDirectory.resolve("02-index.sql"), Collections.singletonList("CREATE INDEX TAG_NAME ON TAG_COPY(NAME);"));
+    Path first = Files.write(workDirectory.resolve("01-table.sql"), Collections.singletonList("CREATE TABLE TAG_COPY(NAME VARCHAR(50));"));
+    loadTask.getDeferredScripts().from(second, first);
+    try (Connection connection = driver.connect(JDBC_URL, "sa", "");
+         Statement statement = connection.createStatement()) {
+      statement.execute("DROP TABLE IF EXISTS TAG_COPY");
+    }
+
+    loadTask.load();
+
+    try (Connection connection = driver.connect(JDBC_URL, "sa", "");
+         Statement statement = connection.createStatement();
+         ResultSet index = statement.executeQuery("SELECT COUNT(*) FROM INFORMATION_SCHEMA.INDEXES WHERE INDEX_NAME = 'TAG_NAME'")) {
+      index.next();
+      assertEquals(1, index.getInt(1), "The index script should run after the script creating its table.");
+    }
+  }
+
+  @Test
+  @DisplayName("A parallelism below one is rejected.")
+  void load_invalid_parallelism() throws IOException {
+    loadTask.getDataFiles().from(Files.write(workDirectory.resolve("PUBLIC.Person.csv"), Arrays.asList("Id,Name", "1,Jane")));
+    loadTask.getParallelism().set(0);
+
+    assertThrows(InvalidUserDataException.class, loadTask::load, "No table can be loaded without a thread.");
+  }
+
+  private void exportCsv(String table) throws IOException {
+    ExportH2DataTask exportTask = project.getTasks().register("export" + table, ExportH2DataTask.class).get();
+    exportTask.getH2Classpath().from(h2Classpath);
+    exportTask.getJdbcUrl().set(JDBC_URL);
+    exportTask.getDatabaseUser().set("sa");
+    exportTask.getDatabasePassword().set("");
+    exportTask.getTables().add(table);
+    exportTask.getCompress().set(false);
+    //Gradle creates the output directory before the task runs
+    exportTask.getOutputDir().set(Files.createDirectories(workDirectory.resolve("export")).toFile());
+    exportTask.getSummaryFile().set(workDirectory.resolve("export-summary.csv").toFile());
+    exportTask.export();
+  }
+}